@@ -3,6 +3,7 @@ package com.github.NeRdTheNed.deft4j;
 import java.io.IOException;
 
 import com.github.NeRdTheNed.deft4j.deflate.DeflateStream;
+import com.github.NeRdTheNed.deft4j.deflate.OptimiseOptions;
 
 public class Deft {
     // Debug flags
@@ -19,10 +20,20 @@ public class Deft {
 
     /** Optimise a raw deflate stream */
     public static byte[] optimiseDeflateStream(byte[] original, boolean mergeBlocks) {
+        return optimiseDeflateStream(original, OptimiseOptions.DEFAULT.withMergeBlocks(mergeBlocks));
+    }
+
+    /** Optimise a raw deflate stream, trying the candidate blocks of the given effort level */
+    public static byte[] optimiseDeflateStream(byte[] original, boolean mergeBlocks, OptimiseOptions.Effort effort) {
+        return optimiseDeflateStream(original, OptimiseOptions.DEFAULT.withMergeBlocks(mergeBlocks).withEffort(effort));
+    }
+
+    /** Optimise a raw deflate stream */
+    public static byte[] optimiseDeflateStream(byte[] original, OptimiseOptions options) {
         final DeflateStream stream = new DeflateStream();
 
         try {
-            if (stream.parse(original) && (stream.optimise(mergeBlocks) > 0)) {
+            if (stream.parse(original) && (stream.optimise(options) > 0)) {
                 return stream.asBytes();
             }
         } catch (final IOException e) {
@@ -0,0 +1,106 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+/**
+ * Finds better boundaries between adjacent Huffman blocks, by estimating the size of both blocks from their symbol histograms.
+ * The histograms are updated as each literal / backref moves across the boundary,
+ * so trying a boundary costs two estimates rather than recoding both blocks.
+ */
+final class BlockBoundaries {
+    /** Private constructor to hide the default one */
+    private BlockBoundaries() {
+        // This space left intentionally blank
+    }
+
+    /** Maximum amount of literals / backrefs the boundary is moved by in each direction */
+    private static final int MAX_SHIFT = 1024;
+    /** Boundaries are first tried at this interval, then at every position around the best boundary */
+    private static final int COARSE_STEP = 16;
+
+    /** The literals / backrefs of two adjacent blocks, and the histograms of each block for the current boundary */
+    private static final class Boundary {
+        private final int[] litlens;
+        private final int[] firstLitlenFreq;
+        private final int[] firstDistFreq;
+        private final int[] secondLitlenFreq;
+        private final int[] secondDistFreq;
+        /** Index of the first literal / backref in the second block */
+        private int boundary;
+
+        Boundary(DeflateBlockHuffman first, DeflateBlockHuffman second) {
+            final int[] firstLitlens = first.getLitlens().toArray();
+            final int[] secondLitlens = second.getLitlens().toArray();
+            // Both blocks always end with an end of block symbol, which isn't moved
+            boundary = firstLitlens.length - 1;
+            litlens = new int[boundary + (secondLitlens.length - 1)];
+            System.arraycopy(firstLitlens, 0, litlens, 0, boundary);
+            System.arraycopy(secondLitlens, 0, litlens, boundary, secondLitlens.length - 1);
+            firstLitlenFreq = first.getLitlenFreq().clone();
+            firstDistFreq = first.getDistFreq().clone();
+            secondLitlenFreq = second.getLitlenFreq().clone();
+            secondDistFreq = second.getDistFreq().clone();
+        }
+
+        void moveTo(int newBoundary) {
+            while (boundary < newBoundary) {
+                DeflateBlockHuffman.countLitLen(litlens[boundary], -1, secondLitlenFreq, secondDistFreq);
+                DeflateBlockHuffman.countLitLen(litlens[boundary], 1, firstLitlenFreq, firstDistFreq);
+                boundary++;
+            }
+
+            while (boundary > newBoundary) {
+                boundary--;
+                DeflateBlockHuffman.countLitLen(litlens[boundary], -1, firstLitlenFreq, firstDistFreq);
+                DeflateBlockHuffman.countLitLen(litlens[boundary], 1, secondLitlenFreq, secondDistFreq);
+            }
+        }
+
+        long estimateSizeBits() {
+            return DeflateBlockHuffman.estimateSizeBits(firstLitlenFreq, firstDistFreq) + DeflateBlockHuffman.estimateSizeBits(secondLitlenFreq, secondDistFreq);
+        }
+    }
+
+    /**
+     * Returns the amount of literals / backrefs to move from the start of the second block to the end of the first block,
+     * or from the end of the first block to the start of the second block if negative.
+     * Returns 0 if no other boundary is estimated to make the blocks smaller.
+     */
+    static int findBestShift(DeflateBlockHuffman first, DeflateBlockHuffman second) {
+        final Boundary boundary = new Boundary(first, second);
+        final int original = boundary.boundary;
+        // Each block keeps at least one literal / backref
+        final int min = Math.max(1, original - MAX_SHIFT);
+        final int max = Math.min(boundary.litlens.length - 1, original + MAX_SHIFT);
+
+        if (min >= max) {
+            return 0;
+        }
+
+        long bestSizeBits = boundary.estimateSizeBits();
+        int best = original;
+        final int start = original - (((original - min) / COARSE_STEP) * COARSE_STEP);
+
+        for (int i = start; i <= max; i += COARSE_STEP) {
+            boundary.moveTo(i);
+            final long sizeBits = boundary.estimateSizeBits();
+
+            if (sizeBits < bestSizeBits) {
+                bestSizeBits = sizeBits;
+                best = i;
+            }
+        }
+
+        final int coarseBest = best;
+
+        for (int i = Math.max(min, coarseBest - COARSE_STEP + 1); i <= Math.min(max, coarseBest + COARSE_STEP - 1); i++) {
+            boundary.moveTo(i);
+            final long sizeBits = boundary.estimateSizeBits();
+
+            if (sizeBits < bestSizeBits) {
+                bestSizeBits = sizeBits;
+                best = i;
+            }
+        }
+
+        return best - original;
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import com.github.NeRdTheNed.deft4j.util.IntList;
+
+/**
+ * Finds points to split a Huffman block at, so each part can have Huffman codes suited to its own literals / backrefs.
+ * This works like the block splitter from Zopfli: the largest part is split at the point which gives the smallest estimated size for both halves,
+ * until no split makes any part smaller, or the maximum amount of parts is reached.
+ */
+final class BlockSplitter {
+    /** Maximum amount of parts a block is split into */
+    private static final int MAX_PARTS = 15;
+    /** Parts with fewer literals / backrefs than this aren't split */
+    private static final int MIN_SPLIT_SIZE = 10;
+    /** Ranges with fewer split points than this are searched at every point */
+    private static final int LINEAR_SEARCH_SIZE = 1024;
+    /** Amount of split points tried in each step of searching larger ranges */
+    private static final int SEARCH_POINTS = 9;
+
+    /** Literals / backrefs of the block, without the end of block symbol */
+    private final int[] litlens;
+    private final int litlenFreqLength;
+    private final int distFreqLength;
+
+    private BlockSplitter(DeflateBlockHuffman block) {
+        final int[] blockLitlens = block.getLitlens().toArray();
+        litlens = new int[blockLitlens.length - 1];
+        System.arraycopy(blockLitlens, 0, litlens, 0, litlens.length);
+        litlenFreqLength = block.getLitlenFreq().length;
+        distFreqLength = block.getDistFreq().length;
+    }
+
+    /** Estimates the size of a block with the literals / backrefs from start to end */
+    private long estimateSizeBits(int start, int end) {
+        final int[] litlenFreq = new int[litlenFreqLength];
+        final int[] distFreq = new int[distFreqLength];
+
+        for (int i = start; i < end; i++) {
+            DeflateBlockHuffman.countLitLen(litlens[i], 1, litlenFreq, distFreq);
+        }
+
+        litlenFreq[Constants.LITLEN_EOB]++;
+        return DeflateBlockHuffman.estimateSizeBits(litlenFreq, distFreq);
+    }
+
+    private long estimateSplitSizeBits(int start, int split, int end) {
+        return estimateSizeBits(start, split) + estimateSizeBits(split, end);
+    }
+
+    /**
+     * Finds the split point from splitStart to splitEnd (exclusive) which gives the smallest estimated size for the part from start to end.
+     * Small ranges are searched at every point, larger ranges are narrowed down around the best of a few evenly spaced points,
+     * which assumes the estimated size changes smoothly.
+     */
+    private int findBestSplit(int start, int end) {
+        int searchStart = start + 1;
+        int searchEnd = end;
+
+        if ((searchEnd - searchStart) < LINEAR_SEARCH_SIZE) {
+            int best = searchStart;
+            long bestSizeBits = Long.MAX_VALUE;
+
+            for (int i = searchStart; i < searchEnd; i++) {
+                final long sizeBits = estimateSplitSizeBits(start, i, end);
+
+                if (sizeBits < bestSizeBits) {
+                    bestSizeBits = sizeBits;
+                    best = i;
+                }
+            }
+
+            return best;
+        }
+
+        final int[] points = new int[SEARCH_POINTS];
+        final long[] pointSizeBits = new long[SEARCH_POINTS];
+        int best = searchStart;
+        long lastBestSizeBits = Long.MAX_VALUE;
+
+        while ((searchEnd - searchStart) > SEARCH_POINTS) {
+            int bestPoint = 0;
+
+            for (int i = 0; i < SEARCH_POINTS; i++) {
+                points[i] = searchStart + ((i + 1) * ((searchEnd - searchStart) / (SEARCH_POINTS + 1)));
+                pointSizeBits[i] = estimateSplitSizeBits(start, points[i], end);
+
+                if (pointSizeBits[i] < pointSizeBits[bestPoint]) {
+                    bestPoint = i;
+                }
+            }
+
+            if (pointSizeBits[bestPoint] > lastBestSizeBits) {
+                break;
+            }
+
+            searchStart = bestPoint == 0 ? searchStart : points[bestPoint - 1];
+            searchEnd = bestPoint == (SEARCH_POINTS - 1) ? searchEnd : points[bestPoint + 1];
+            best = points[bestPoint];
+            lastBestSizeBits = pointSizeBits[bestPoint];
+        }
+
+        return best;
+    }
+
+    /** Returns the sorted indexes of the literals / backrefs each new part should start at, or an empty list if the block shouldn't be split */
+    static IntList findSplitPoints(DeflateBlockHuffman block) {
+        final BlockSplitter splitter = new BlockSplitter(block);
+        final int size = splitter.litlens.length;
+        // Sorted split points, with the start and end of the block
+        final IntList bounds = new IntList();
+        bounds.add(0);
+        bounds.add(size);
+        // Parts which can't be split any further, by their start
+        final boolean[] done = new boolean[size + 1];
+        int parts = 1;
+
+        while (parts < MAX_PARTS) {
+            // Find the largest part which can still be split
+            int largest = -1;
+
+            for (int i = 0; i < (bounds.size() - 1); i++) {
+                final int partSize = bounds.get(i + 1) - bounds.get(i);
+
+                if (!done[bounds.get(i)] && (partSize >= MIN_SPLIT_SIZE) && ((largest == -1) || (partSize > (bounds.get(largest + 1) - bounds.get(largest))))) {
+                    largest = i;
+                }
+            }
+
+            if (largest == -1) {
+                break;
+            }
+
+            final int start = bounds.get(largest);
+            final int end = bounds.get(largest + 1);
+            final int split = splitter.findBestSplit(start, end);
+
+            if ((split <= (start + 1)) || (split >= end) || (splitter.estimateSplitSizeBits(start, split, end) >= splitter.estimateSizeBits(start, end))) {
+                done[start] = true;
+            } else {
+                final IntList newBounds = new IntList(bounds.size() + 1);
+
+                for (int i = 0; i < bounds.size(); i++) {
+                    newBounds.add(bounds.get(i));
+
+                    if (i == largest) {
+                        newBounds.add(split);
+                    }
+                }
+
+                bounds.clear();
+
+                for (int i = 0; i < newBounds.size(); i++) {
+                    bounds.add(newBounds.get(i));
+                }
+
+                parts++;
+            }
+        }
+
+        final IntList splitPoints = new IntList(bounds.size());
+
+        for (int i = 1; i < (bounds.size() - 1); i++) {
+            splitPoints.add(bounds.get(i));
+        }
+
+        return splitPoints;
+    }
+}
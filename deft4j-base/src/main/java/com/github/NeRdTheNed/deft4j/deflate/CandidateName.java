@@ -0,0 +1,95 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The name of a candidate block, made of the names of the steps which created it.
+ * Names are cheap to extend, and the full string is only built when it's printed.
+ * Two names are equal if they have the same parts, so names can be used to look up statistics.
+ */
+final class CandidateName {
+    static final CandidateName ROOT = new CandidateName(null, null);
+
+    private static final String PATH_SEPARATOR = "/";
+
+    private final CandidateName parent;
+    private final String part;
+    private final int hash;
+
+    private CandidateName(CandidateName parent, String part) {
+        this.parent = parent;
+        this.part = part;
+        hash = parent == null ? 0 : (31 * parent.hash) + part.hashCode();
+    }
+
+    /** Returns the name of a step or candidate created by this step */
+    CandidateName then(String childPart) {
+        assert !childPart.contains(PATH_SEPARATOR);
+        return new CandidateName(this, childPart);
+    }
+
+    CandidateName getParent() {
+        return parent;
+    }
+
+    boolean isRoot() {
+        return parent == null;
+    }
+
+    private List<String> getParts() {
+        final List<String> parts = new ArrayList<>();
+
+        for (CandidateName name = this; !name.isRoot(); name = name.parent) {
+            parts.add(0, name.part);
+        }
+
+        return parts;
+    }
+
+    /** Returns the name as a path, which can be read back with {@link #fromPath(String)} */
+    String toPath() {
+        return String.join(PATH_SEPARATOR, getParts());
+    }
+
+    static CandidateName fromPath(String path) {
+        CandidateName name = ROOT;
+
+        if (!path.isEmpty()) {
+            for (final String pathPart : path.split(PATH_SEPARATOR, -1)) {
+                name = name.then(pathPart);
+            }
+        }
+
+        return name;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof CandidateName)) {
+            return false;
+        }
+
+        final CandidateName other = (CandidateName) obj;
+
+        if ((hash != other.hash) || (isRoot() != other.isRoot())) {
+            return false;
+        }
+
+        return isRoot() || (part.equals(other.part) && parent.equals(other.parent));
+    }
+
+    @Override
+    public String toString() {
+        return isRoot() ? "original" : String.join(" ", getParts());
+    }
+}
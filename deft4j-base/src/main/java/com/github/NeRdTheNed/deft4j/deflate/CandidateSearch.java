@@ -0,0 +1,308 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import com.github.NeRdTheNed.deft4j.Deft;
+
+/**
+ * Finds the smallest of a set of candidate blocks, creating and sizing candidates in parallel on a ForkJoinPool.
+ * Each candidate is numbered by the order it would be tried in if the search ran sequentially,
+ * and candidates of equal size are ranked by this order, so the result never depends on scheduling.
+ * Stored blocks are the only blocks with a size that depends on their alignment,
+ * so the smallest stored block is kept separately, which allows picking the best candidate for any alignment after the search.
+ * Once the budget of the optimisation runs out, no more candidates are tried, and the smallest candidate found so far is kept.
+ * Forked steps are run in order of how often they won previous searches, as recorded in the {@link StrategyStats.Snapshot} of the optimisation.
+ * This doesn't change the result of a search with an unlimited budget, as candidates are still ranked by their sequential order.
+ * The steps which ran and the winning candidate are only added to the statistics by {@link #recordStats(long)},
+ * once the result of the search is used.
+ */
+final class CandidateSearch {
+    // Debug print flags
+    private static final boolean PRINT_OPT_FINE = Deft.PRINT_OPT_FINE;
+    private static final boolean PRINT_OPT_FINER = Deft.PRINT_OPT_FINER;
+
+    private static final int[] ORIGINAL_ORDER = {};
+
+    private static final class Best {
+        final DeflateBlock block;
+        final long sizeBits;
+        /** The position of the candidate in sequential order */
+        final int[] order;
+        final CandidateName name;
+
+        Best(DeflateBlock block, long sizeBits, int[] order, CandidateName name) {
+            this.block = block;
+            this.sizeBits = sizeBits;
+            this.order = order;
+            this.name = name;
+        }
+    }
+
+    private static final class Forked {
+        final CandidateName step;
+        final ForkJoinTask<?> task;
+
+        Forked(CandidateName step, ForkJoinTask<?> task) {
+            this.step = step;
+            this.task = task;
+        }
+    }
+
+    /** Compares sequential positions, a parent comes before its children */
+    private static int compareOrder(int[] a, int[] b) {
+        final int len = Math.min(a.length, b.length);
+
+        for (int i = 0; i < len; i++) {
+            if (a[i] != b[i]) {
+                return Integer.compare(a[i], b[i]);
+            }
+        }
+
+        return Integer.compare(a.length, b.length);
+    }
+
+    private static boolean isStored(DeflateBlock block) {
+        return block.getDeflateBlockType() == DeflateBlockType.STORED;
+    }
+
+    private final long position;
+    private final OptimiseOptions.Effort effort;
+    private final OptimiseOptions.Budget budget;
+    private final StrategyStats stats;
+    private final StrategyStats.Snapshot snapshot;
+    /** Steps which ran, counted once the result of the search is used */
+    private final Queue<CandidateName> ranSteps;
+    private final DeflateBlock original;
+    private final AtomicInteger tried = new AtomicInteger();
+    private final AtomicInteger pruned = new AtomicInteger();
+    /** Smallest block which isn't a stored block */
+    private final AtomicReference<Best> best = new AtomicReference<>();
+    /** Smallest stored block, sized at the search position */
+    private final AtomicReference<Best> bestStored = new AtomicReference<>();
+
+    CandidateSearch(DeflateBlock original, long position, OptimiseOptions.Effort effort, OptimiseOptions.Budget budget) {
+        this.position = position;
+        this.effort = effort;
+        this.budget = budget;
+        stats = budget.getStats();
+        snapshot = budget.getSnapshot();
+        ranSteps = stats == null ? null : new ConcurrentLinkedQueue<>();
+        this.original = original;
+        getBestRef(original).set(new Best(original, original.getSizeBits(position), ORIGINAL_ORDER, CandidateName.ROOT));
+    }
+
+    private AtomicReference<Best> getBestRef(DeflateBlock block) {
+        return isStored(block) ? bestStored : best;
+    }
+
+    /** Runs the search */
+    CandidateSearch search(Consumer<Context> root) {
+        final ForkJoinTask<?> task = new Context(ORIGINAL_ORDER, CandidateName.ROOT).asTask(root, false);
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+
+        if (PRINT_OPT_FINE) {
+            System.out.println("Tried " + tried.get() + " candidates, pruned " + pruned.get() + " candidates");
+        }
+
+        return this;
+    }
+
+    /** Adds the steps which ran and the winning candidate at the given position to the statistics, once the result of the search is used */
+    void recordStats(long alignment) {
+        if (stats == null) {
+            return;
+        }
+
+        for (final CandidateName step : ranSteps) {
+            stats.recordRun(step);
+        }
+
+        final Best winner = getBestCandidate(alignment);
+        final long saved = original.getSizeBits(alignment) - winner.block.getSizeBits(alignment);
+
+        if (saved > 0) {
+            stats.recordWin(winner.name, saved);
+        }
+    }
+
+    /** Returns true if the step rarely wins, and isn't sampled by this search */
+    private boolean skipRun(CandidateName step) {
+        return (snapshot != null) && (effort != OptimiseOptions.Effort.EXHAUSTIVE) && snapshot.skipRun(step, position);
+    }
+
+    private Best getBestCandidate(long alignment) {
+        final Best currentBest = best.get();
+        final Best currentBestStored = bestStored.get();
+
+        if (currentBestStored == null) {
+            return currentBest;
+        }
+
+        if (currentBest == null) {
+            return currentBestStored;
+        }
+
+        final long storedSizeBits = currentBestStored.block.getSizeBits(alignment);
+
+        if ((storedSizeBits < currentBest.sizeBits) || ((storedSizeBits == currentBest.sizeBits) && (compareOrder(currentBestStored.order, currentBest.order) < 0))) {
+            return currentBestStored;
+        }
+
+        return currentBest;
+    }
+
+    /** Returns the smallest candidate at the given position, or the original block if no candidate was smaller */
+    DeflateBlock getBest(long alignment) {
+        return getBestCandidate(alignment).block;
+    }
+
+    /**
+     * A step of the search, which can try candidates and fork further steps.
+     * Candidates and forked steps are numbered in the order they're created in.
+     */
+    final class Context {
+        private final int[] order;
+        private final CandidateName step;
+        private int next;
+        private List<Forked> forked;
+
+        private Context(int[] order, CandidateName step) {
+            this.order = order;
+            this.step = step;
+        }
+
+        private int[] nextOrder() {
+            final int[] childOrder = Arrays.copyOf(order, order.length + 1);
+            childOrder[order.length] = next;
+            next++;
+            return childOrder;
+        }
+
+        private ForkJoinTask<?> asTask(Consumer<Context> action, boolean countRun) {
+            return new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    // Steps which haven't started when the budget runs out are skipped, as are rarely winning steps below the highest effort
+                    if (!budget.isExhausted() && !(countRun && skipRun(step))) {
+                        if (countRun && (ranSteps != null)) {
+                            ranSteps.add(step);
+                        }
+
+                        action.accept(Context.this);
+                    }
+
+                    runForked();
+                }
+            };
+        }
+
+        /**
+         * Runs the steps forked by this step, starting with the steps which won most often.
+         * Steps are pushed in reverse order, so this thread runs them in that order,
+         * while idle threads steal the steps which would run last.
+         */
+        private void runForked() {
+            if (forked != null) {
+                if (snapshot != null) {
+                    forked.sort((a, b) -> Long.compare(snapshot.getWins(b.step), snapshot.getWins(a.step)));
+                }
+
+                for (int i = forked.size() - 1; i >= 0; i--) {
+                    forked.get(i).task.fork();
+                }
+
+                for (final Forked fork : forked) {
+                    fork.task.join();
+                }
+            }
+        }
+
+        /** Tries a candidate block, keeping it if it's smaller than the current best of the same kind */
+        void offer(DeflateBlock candidate, CandidateName name) {
+            if (PRINT_OPT_FINER) {
+                System.out.println("Trying " + name);
+            }
+
+            final int[] candidateOrder = nextOrder();
+
+            if (!budget.useCandidate()) {
+                return;
+            }
+
+            tried.incrementAndGet();
+            final long newSizeBits = candidate.getSizeBits(position);
+            final AtomicReference<Best> bestRef = getBestRef(candidate);
+            Best offered = null;
+            Best current;
+
+            do {
+                current = bestRef.get();
+
+                if ((current != null) && ((newSizeBits > current.sizeBits) || ((newSizeBits == current.sizeBits) && (compareOrder(candidateOrder, current.order) > 0)))) {
+                    return;
+                }
+
+                if (offered == null) {
+                    offered = new Best(candidate, newSizeBits, candidateOrder, name);
+                }
+            } while (!bestRef.compareAndSet(current, offered));
+
+            if (PRINT_OPT_FINE && (current != null)) {
+                System.out.println("Candidate " + name + " saved " + (current.sizeBits - newSizeBits) + " bits");
+            }
+        }
+
+        /**
+         * Checks if candidates could be smaller than the current best, given a lower bound for their size.
+         * Returns true if they can't, in which case they're counted as pruned and shouldn't be created.
+         * Only candidates which must be larger than the current best are pruned, so pruning never changes the result.
+         */
+        boolean prune(long sizeBitsLowerBound, int candidates) {
+            final Best current = best.get();
+
+            if ((current != null) && (sizeBitsLowerBound > current.sizeBits)) {
+                pruned.addAndGet(candidates);
+                budget.countPruned(candidates);
+                return true;
+            }
+
+            return false;
+        }
+
+        /** Returns true if candidates of the given effort level should be tried */
+        boolean hasEffort(OptimiseOptions.Effort level) {
+            return effort.compareTo(level) >= 0;
+        }
+
+        /**
+         * Runs a step of the search in parallel, after the rest of this step.
+         * Candidates created by the step should be named by extending the name of the step.
+         * If the step has the same name as this step, it's counted as part of this step.
+         */
+        void fork(CandidateName name, Consumer<Context> action) {
+            if (forked == null) {
+                forked = new ArrayList<>();
+            }
+
+            final Context child = new Context(nextOrder(), name);
+            forked.add(new Forked(name, child.asTask(action, !name.equals(step))));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.github.NeRdTheNed.deft4j.io.BitInputStream;
+
+/**
+ * The decoded data of a whole deflate stream while it's being parsed.
+ * Every block writes its decoded data to the same buffer, so backrefs into previous blocks are copied directly from it,
+ * and each block keeps a {@link DecodedData} view of its own range once it's finished decoding.
+ */
+final class DecodeWindow {
+    private static final int INITIAL_SIZE = 0x1000;
+    /**
+     * Most bytes a single byte of deflate data can decode to: a backref of the maximum length with 1 bit length and distance codes.
+     * Size hints are read from untrusted headers, so they're never trusted past this ratio to the compressed size.
+     */
+    private static final long MAX_DEFLATE_RATIO = (Constants.MAX_LEN * 8L) / 2L;
+    /** Largest size hint the buffer is allocated with up front, larger buffers grow as needed */
+    private static final int MAX_HINTED_SIZE = 1 << 28;
+
+    private byte[] data;
+    private int size;
+
+    /**
+     * Creates a buffer for the given expected size of the decoded data, bounded by the most data the compressed size could decode to.
+     * Uses a small buffer which grows as needed if either size is 0 or less.
+     */
+    DecodeWindow(long sizeHint, long compressedSize) {
+        final long bounded = Math.min(sizeHint, compressedSize * MAX_DEFLATE_RATIO);
+        data = new byte[bounded > 0 ? (int) Math.min(bounded, MAX_HINTED_SIZE) : INITIAL_SIZE];
+    }
+
+    /** Creates a window which already contains the given data */
+    DecodeWindow(byte[] data) {
+        this.data = data;
+        size = data.length;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (data.length < needed) {
+            data = Arrays.copyOf(data, Math.max(needed, data.length * 2));
+        }
+    }
+
+    /** Returns the amount of bytes decoded so far */
+    int size() {
+        return size;
+    }
+
+    /** Returns the current buffer, which is replaced by a larger copy when it runs out of space */
+    byte[] buffer() {
+        return data;
+    }
+
+    void write(int val) {
+        ensureCapacity(size + 1);
+        data[size] = (byte) val;
+        size++;
+    }
+
+    void write(byte[] vals) {
+        ensureCapacity(size + vals.length);
+        System.arraycopy(vals, 0, data, size, vals.length);
+        size += vals.length;
+    }
+
+    /** Reads len bytes from the input stream, returns false if there weren't enough bytes */
+    boolean read(BitInputStream is, int len) throws IOException {
+        ensureCapacity(size + len);
+
+        if (is.readBytes(data, size, len) != len) {
+            return false;
+        }
+
+        size += len;
+        return true;
+    }
+
+    /** Copies len bytes from the given distance before the end of the decoded data, with overlapping backref support. Returns false if the distance is before the start of the stream. */
+    boolean copy(int distance, int len) {
+        if ((distance < 1) || (distance > size)) {
+            return false;
+        }
+
+        ensureCapacity(size + len);
+        int from = size - distance;
+
+        // Copy non-overlapping runs, each run is as long as the distance
+        while (len > 0) {
+            final int run = Math.min(len, size - from);
+            System.arraycopy(data, from, data, size, run);
+            size += run;
+            from += run;
+            len -= run;
+        }
+
+        return true;
+    }
+
+    /** Returns a copy of the decoded data from the given position to the end */
+    byte[] copyFrom(int start) {
+        return Arrays.copyOfRange(data, start, size);
+    }
+
+    /** Returns a view of the decoded data from the given position to the end */
+    DecodedData viewFrom(int start) {
+        return new DecodedData(this, start, size - start);
+    }
+}
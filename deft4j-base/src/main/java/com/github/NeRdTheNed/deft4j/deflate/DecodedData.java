@@ -0,0 +1,73 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.github.NeRdTheNed.deft4j.io.BitOutputStream;
+
+/**
+ * The decoded data of a block, as a range of a {@link DecodeWindow}.
+ * Blocks parsed from a stream are views into the window the stream was decoded into, rather than holding their own copies.
+ * Decoded data in a window never changes, so splitting a block or merging adjacent parts of a window only creates new views.
+ */
+final class DecodedData {
+    static final DecodedData EMPTY = of(new byte[0]);
+
+    private final DecodeWindow window;
+    private final int offset;
+    private final int length;
+
+    DecodedData(DecodeWindow window, int offset, int length) {
+        this.window = window;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /** Wraps data which isn't part of a stream's window, without copying it */
+    static DecodedData of(byte[] data) {
+        return new DecodedData(new DecodeWindow(data), 0, data.length);
+    }
+
+    int length() {
+        return length;
+    }
+
+    /** Returns the buffer of the window, which the data starts at {@link #offset()} in */
+    byte[] buffer() {
+        return window.buffer();
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    /** Returns the decoded data from the start index until the end index */
+    DecodedData slice(int start, int end) {
+        return new DecodedData(window, offset + start, end - start);
+    }
+
+    /** Returns this data followed by the given data, as a view of the same window if the data is adjacent in it */
+    DecodedData append(DecodedData next) {
+        if ((window == next.window) && ((offset + length) == next.offset)) {
+            return new DecodedData(window, offset, length + next.length);
+        }
+
+        final byte[] combined = new byte[length + next.length];
+        copyTo(combined, 0);
+        next.copyTo(combined, length);
+        return of(combined);
+    }
+
+    void copyTo(byte[] dest, int destPos) {
+        System.arraycopy(window.buffer(), offset, dest, destPos, length);
+    }
+
+    void writeTo(BitOutputStream os) throws IOException {
+        os.writeBytes(window.buffer(), offset, length);
+    }
+
+    /** Returns a copy of the decoded data */
+    byte[] toArray() {
+        return Arrays.copyOfRange(window.buffer(), offset, offset + length);
+    }
+}
@@ -1,7 +1,6 @@
 package com.github.NeRdTheNed.deft4j.deflate;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 import com.github.NeRdTheNed.deft4j.io.BitInputStream;
 import com.github.NeRdTheNed.deft4j.io.BitOutputStream;
@@ -28,10 +27,16 @@ public abstract class DeflateBlock {
     public abstract DeflateBlock merge(DeflateBlock append);
     public abstract long optimise();
     public abstract DeflateBlockType getDeflateBlockType();
-    abstract boolean parse(BitInputStream is) throws IOException;
+    /** Parses the block, writing its decoded data to the decoded data of the stream */
+    abstract boolean parse(BitInputStream is, DecodeWindow window) throws IOException;
     abstract boolean fromUncompressed(byte[] input);
     abstract boolean write(BitOutputStream os, boolean finalBlock) throws IOException;
-    abstract byte[] getUncompressedData();
+    /** Returns the decoded data of the block, which is usually a view into the decoded data of its stream */
+    abstract DecodedData getDecodedData();
+    /** Returns a copy of the decoded data of the block */
+    byte[] getUncompressedData() {
+        return getDecodedData().toArray();
+    }
     public abstract long getSizeBits(long alginment);
     public void discard() {
         final DeflateBlock prev = prevBlock;
@@ -54,7 +59,7 @@ public abstract class DeflateBlock {
         if (getDeflateBlockType() != DeflateBlockType.STORED) {
             final DeflateBlockUncompressed newUncom = new DeflateBlockUncompressed(prevBlock);
             newUncom.setNext(nextBlock);
-            newUncom.fromUncompressed(getUncompressedData());
+            newUncom.fromDecoded(getDecodedData());
             return newUncom;
         }
 
@@ -142,96 +147,4 @@ public abstract class DeflateBlock {
 
         discard();
     }
-
-    /** Read a slice of decompressed data from the current block or previous blocks, with overlapping backref support. */
-    static byte[] readSlice(long initialBackDist, final long initialSize, final DeflateBlock thisBlock, final byte[] thisBlockData, final long thisBlockSize, final long initialBackDistOffset) {
-        assert (initialBackDist <= Constants.LZZ_BACKREF_LEN) && (initialBackDist >= 0);
-        assert initialBackDistOffset >= 0;
-        initialBackDist += initialBackDistOffset;
-        long backDist = initialBackDist;
-        long size = initialSize;
-        assert size > 0;
-
-        if (backDist < thisBlockSize) {
-            final long offsetFromStartOfBlock = thisBlockSize - backDist;
-            final long remainingBytesInBlock = thisBlockSize - offsetFromStartOfBlock;
-
-            if (remainingBytesInBlock >= size) {
-                return Arrays.copyOfRange(thisBlockData, (int) offsetFromStartOfBlock, (int) (offsetFromStartOfBlock + size));
-            }
-        }
-
-        final byte[] collectedSlice = new byte[(int) initialSize];
-        int currentPosInArr = 0;
-
-        do {
-            long currentBackDist = backDist;
-            long currentSize = size;
-            long currentBlockSize = thisBlockSize;
-            DeflateBlock currentBlock = thisBlock;
-            byte[] currentBlockData = thisBlockData;
-
-            // Read data from the previous block if needed
-            while (currentBackDist > currentBlockSize) {
-                currentBackDist -= currentBlockSize;
-                currentSize -= currentBlockSize;
-                currentBlock = currentBlock.prevBlock;
-                assert currentBlock != null;
-                currentBlockData = currentBlock.getUncompressedData();
-                currentBlockSize = currentBlockData.length;
-            }
-
-            long offsetFromStartOfBlock = currentBlockSize - currentBackDist;
-            final long remainingBytesInBlock = currentBlockSize - offsetFromStartOfBlock;
-            assert remainingBytesInBlock >= 0;
-
-            // Check for overlapping backref
-            if (((offsetFromStartOfBlock + currentSize) > currentBlockSize) && (currentBlock == thisBlock)) {
-                // Overlapping backref, start by copying any non-overlapping data
-                if (remainingBytesInBlock > 0) {
-                    System.arraycopy(currentBlockData, (int) offsetFromStartOfBlock, collectedSlice, currentPosInArr, (int) remainingBytesInBlock);
-                    currentPosInArr += (int) remainingBytesInBlock;
-                    offsetFromStartOfBlock += remainingBytesInBlock;
-                    assert currentBlockSize == offsetFromStartOfBlock;
-                    currentSize = remainingBytesInBlock;
-                } else {
-                    assert currentBlockSize == offsetFromStartOfBlock;
-                    // Copy overlapping backref
-                    // TODO Somewhat inefficient
-                    long adjustedBackDist = initialBackDist - currentPosInArr;
-
-                    for (int currOff = 0; currOff < (currentSize - remainingBytesInBlock); currOff++) {
-                        collectedSlice[currentPosInArr] = collectedSlice[(int) adjustedBackDist];
-                        adjustedBackDist++;
-                        currentPosInArr++;
-                    }
-                }
-            } else {
-                // Copy wanted size or until the end of block
-                currentSize = Math.min(remainingBytesInBlock, size);
-                assert currentSize > 0;
-                System.arraycopy(currentBlockData, (int) offsetFromStartOfBlock, collectedSlice, currentPosInArr, (int) currentSize);
-                currentPosInArr += currentSize;
-            }
-
-            backDist -= currentSize;
-            size -= currentSize;
-        } while (size > 0);
-
-        return collectedSlice;
-    }
-
-    /** Read a slice of decompressed data from the current block or previous blocks, with overlapping backref support. */
-    static byte[] readSlice(final long initialBackDist, final long initialSize, final DeflateBlock thisBlock, final byte[] thisBlockData, final long thisBlockSize) {
-        return readSlice(initialBackDist, initialSize, thisBlock, thisBlockData, thisBlockSize, 0);
-    }
-
-    byte[] readSlice(long backDist, long size, long offset) {
-        final byte[] uncomData = getUncompressedData();
-        return readSlice(backDist, size, this, uncomData, uncomData.length, offset);
-    }
-
-    byte[] readSlice(long backDist, long size) {
-        return readSlice(backDist, size, 0);
-    }
 }
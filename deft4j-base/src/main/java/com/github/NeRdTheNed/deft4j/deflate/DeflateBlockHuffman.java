@@ -1,12 +1,8 @@
 package com.github.NeRdTheNed.deft4j.deflate;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.PrimitiveIterator;
 
 import com.github.NeRdTheNed.deft4j.Deft;
 import com.github.NeRdTheNed.deft4j.huffman.Huffman;
@@ -15,6 +11,8 @@ import com.github.NeRdTheNed.deft4j.huffman.HuffmanTable;
 import com.github.NeRdTheNed.deft4j.huffman.HuffmanTree;
 import com.github.NeRdTheNed.deft4j.io.BitInputStream;
 import com.github.NeRdTheNed.deft4j.io.BitOutputStream;
+import com.github.NeRdTheNed.deft4j.util.ChunkedIntList;
+import com.github.NeRdTheNed.deft4j.util.IntList;
 import com.github.NeRdTheNed.deft4j.util.Util;
 
 public class DeflateBlockHuffman extends DeflateBlock {
@@ -23,13 +21,13 @@ public class DeflateBlockHuffman extends DeflateBlock {
     private Huffman litlenDec;
     private Huffman distDec;
 
-    // TODO LinkedList?
-    private List<LitLen> litlens;
-    private boolean didCopyLitLens;
-    // Decoded data
-    private boolean finishedDec;
-    private byte[] decodedData;
-    private long dataPos;
+    // Packed literals / backrefs, see LitLen
+    private ChunkedIntList litlens;
+    // Litlen and dist symbol histograms of litlens
+    private int[] litlenFreq;
+    private int[] distFreq;
+    // Decoded data, a view into the decoded data of the stream
+    private DecodedData decodedData;
     private long sizeBits;
     private long litlenSizeBits;
 
@@ -40,8 +38,8 @@ public class DeflateBlockHuffman extends DeflateBlock {
     private int numCodelenLens;
     private int[] codelenLengths;
 
-    private List<LitLen> rlePairs;
-    private boolean didCopyRLEPairs;
+    // Packed RLE encoded codelens, see LitLen
+    private ChunkedIntList rlePairs;
 
     private long dynamicHeaderSizeBits;
 
@@ -60,81 +58,75 @@ public class DeflateBlockHuffman extends DeflateBlock {
         return type;
     }
 
-    /** Read a slice of decompressed data from the current block or previous blocks, with overlapping backref support. Supports reading slices during decoding. */
-    @Override
-    byte[] readSlice(long backDist, long len, long offset) {
-        if (!finishedDec) {
-            return readSlice(backDist, len, this, decodedData, dataPos, offset);
-        }
+    private static int getLitLenSize(int litlenThis, Huffman litlenDec, Huffman distDec) {
+        final int distance = LitLen.dist(litlenThis);
 
-        return super.readSlice(backDist, len, offset);
-    }
+        if (distance > 0) {
+            final int len = LitLen.litlen(litlenThis);
+            final long litlen = Constants.len2litlen(len, LitLen.edgecase(litlenThis));
+            // litlen bits
+            long nbits = litlenDec.getSymLen((int) litlen);
+            // ebits
+            nbits += Constants.litlen_tbl[(int) (litlen - Constants.LITLEN_TBL_OFFSET)].ebits;
+            // Back reference distance
+            final long dist = Constants.distance2dist(distance);
+            // dist bits
+            nbits += distDec.getSymLen((int) dist);
+            // ebits
+            nbits += Constants.dist_tbl[(int) dist].ebits;
+            return (int) nbits;
+        }
 
-    /** Read a slice of decompressed data from the current block or previous blocks, with overlapping backref support. Supports reading slices during decoding. */
-    @Override
-    byte[] readSlice(long backDist, long len) {
-        return readSlice(backDist, len, 0L);
+        return litlenDec.getSymLen(LitLen.litlen(litlenThis));
     }
 
-    private void writeTemp(byte[] vals) {
-        assert !finishedDec;
+    /** Adds delta to the histogram counts of the symbols used by the given literal / backref */
+    static void countLitLen(int litlenThis, int delta, int[] litlenFreq, int[] distFreq) {
+        final int dist = LitLen.dist(litlenThis);
 
-        for (final byte b : vals) {
-            writeTemp(b);
+        if (dist > 0) {
+            litlenFreq[Constants.len2litlen(LitLen.litlen(litlenThis), LitLen.edgecase(litlenThis))] += delta;
+            distFreq[Constants.distance2dist(dist)] += delta;
+        } else {
+            litlenFreq[LitLen.litlen(litlenThis)] += delta;
         }
     }
 
-    private void writeTemp(int val) {
-        assert !finishedDec;
+    /** Calculates the size of the litlens if coded with the given Huffman codes, from the symbol histograms */
+    private long getLitLenSizeBits(Huffman litlenCodes, Huffman distCodes) {
+        long nbits = 0L;
 
-        if (decodedData.length < (dataPos + 1L)) {
-            // Haha malloc go brrr
-            decodedData = Arrays.copyOf(decodedData, decodedData.length * 2);
-        }
+        for (int sym = 0; sym < litlenFreq.length; sym++) {
+            final int freq = litlenFreq[sym];
 
-        decodedData[(int) dataPos] = (byte) val;
-        dataPos++;
-    }
+            if (freq != 0) {
+                long symBits = litlenCodes.getSymLen(sym);
 
-    private void startTemp() {
-        assert !finishedDec;
-        decodedData = new byte[0x100];
-        dataPos = 0L;
-    }
+                if (sym >= Constants.LITLEN_TBL_OFFSET) {
+                    symBits += Constants.litlen_tbl[sym - Constants.LITLEN_TBL_OFFSET].ebits;
+                }
 
-    private void finishTemp() {
-        assert !finishedDec;
-        finishedDec = true;
-        // Resize array to decoded data size
-        decodedData = Arrays.copyOf(decodedData, (int) dataPos);
-    }
+                nbits += freq * symBits;
+            }
+        }
 
-    private static int getLitLenSize(LitLen litlenThis, Huffman litlenDec, Huffman distDec) {
-        if (litlenThis.dist > 0L) {
-            final long distance = litlenThis.dist;
-            final long len = litlenThis.litlen;
-            final long litlen = Constants.len2litlen((int) len, litlenThis.edgecase);
-            // litlen bits
-            long nbits = litlenDec.getSymLen((int) litlen);
-            // ebits
-            nbits += Constants.litlen_tbl[(int) (litlen - Constants.LITLEN_TBL_OFFSET)].ebits;
-            // Back reference distance
-            final long dist = Constants.distance2dist(distance);
-            // dist bits
-            nbits += distDec.getSymLen((int) dist);
-            // ebits
-            nbits += Constants.dist_tbl[(int) dist].ebits;
-            return (int) nbits;
+        for (int sym = 0; sym < distFreq.length; sym++) {
+            final int freq = distFreq[sym];
+
+            if (freq != 0) {
+                nbits += freq * (distCodes.getSymLen(sym) + Constants.dist_tbl[sym].ebits);
+            }
         }
 
-        return litlenDec.getSymLen((int) litlenThis.litlen);
+        return nbits;
     }
 
-    private static int getRLEPairSize(LitLen rlePair, Huffman codeLenDec) {
-        int encodedSize = codeLenDec.getSymLen((int) rlePair.litlen);
+    private static int getRLEPairSize(int rlePair, Huffman codeLenDec) {
+        final int sym = LitLen.litlen(rlePair);
+        int encodedSize = codeLenDec.getSymLen(sym);
 
-        if (rlePair.dist > 0L) {
-            switch ((int) rlePair.litlen) {
+        if (LitLen.dist(rlePair) > 0) {
+            switch (sym) {
             case Constants.CODELEN_COPY: {
                 // 2 bits + 3
                 encodedSize += 2;
@@ -162,32 +154,161 @@ public class DeflateBlockHuffman extends DeflateBlock {
         return encodedSize;
     }
 
-    private static byte[] getRLEPairSlice(LitLen rlePair, LitLen prev) {
-        if (rlePair.dist <= 0L) {
-            return new byte[] { (byte) rlePair.litlen };
+    private static final int MAX_RUN_LENGTH = Constants.MAX_LITLEN_LENS + Constants.MAX_DIST_LENS;
+
+    /** Lower bounds for the encoded size of a run of non-zero / zero codelens, if each RLE symbol takes at least 1 bit */
+    private static final int[] RUN_SIZE_LOWER_BOUND = new int[MAX_RUN_LENGTH + 1];
+    private static final int[] ZERO_RUN_SIZE_LOWER_BOUND = new int[MAX_RUN_LENGTH + 1];
+
+    static {
+        for (int runLength = 1; runLength <= MAX_RUN_LENGTH; runLength++) {
+            // Literal
+            int bound = RUN_SIZE_LOWER_BOUND[runLength - 1] + 1;
+            int zeroBound = ZERO_RUN_SIZE_LOWER_BOUND[runLength - 1] + 1;
+
+            // Copy previous codelen, which must be in the same run
+            for (int copy = Constants.CODELEN_COPY_MIN; (copy <= Constants.CODELEN_COPY_MAX) && (copy < runLength); copy++) {
+                bound = Math.min(bound, RUN_SIZE_LOWER_BOUND[runLength - copy] + 1 + 2);
+                zeroBound = Math.min(zeroBound, ZERO_RUN_SIZE_LOWER_BOUND[runLength - copy] + 1 + 2);
+            }
+
+            // Runs of zeros
+            for (int zeros = Constants.CODELEN_ZEROS_MIN; (zeros <= Constants.CODELEN_ZEROS_MAX) && (zeros <= runLength); zeros++) {
+                zeroBound = Math.min(zeroBound, ZERO_RUN_SIZE_LOWER_BOUND[runLength - zeros] + 1 + 3);
+            }
+
+            for (int zeros = Constants.CODELEN_ZEROS2_MIN; (zeros <= Constants.CODELEN_ZEROS2_MAX) && (zeros <= runLength); zeros++) {
+                zeroBound = Math.min(zeroBound, ZERO_RUN_SIZE_LOWER_BOUND[runLength - zeros] + 1 + 7);
+            }
+
+            RUN_SIZE_LOWER_BOUND[runLength] = bound;
+            ZERO_RUN_SIZE_LOWER_BOUND[runLength] = zeroBound;
+        }
+    }
+
+    private static int codelenOrderIndex(int sym) {
+        for (int i = 0; i < Constants.codelen_lengths_order.length; i++) {
+            if (Constants.codelen_lengths_order[i] == sym) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Invalid codelen symbol " + sym);
+    }
+
+    /**
+     * Returns a lower bound for the size of a dynamic header encoding the current codelens, with any RLE encoding and codelen code.
+     * Each maximal run of codelens is sized as if every RLE symbol took 1 bit,
+     * and the codelen lengths must cover every codelen which can only be encoded as a literal.
+     */
+    private long getDynamicHeaderSizeBitsLowerBound() {
+        final byte[] codelens = getDecodedCodelens();
+        int numCodelenLensLowerBound = Constants.MIN_CODELEN_LENS;
+        long rleSizeLowerBound = 0;
+        int i = 0;
+
+        while (i < codelens.length) {
+            final int codelen = codelens[i];
+            int runLength = 1;
+
+            while (((i + runLength) < codelens.length) && (codelens[i + runLength] == codelen)) {
+                runLength++;
+            }
+
+            i += runLength;
+
+            if (codelen != 0) {
+                rleSizeLowerBound += RUN_SIZE_LOWER_BOUND[runLength];
+            } else {
+                rleSizeLowerBound += ZERO_RUN_SIZE_LOWER_BOUND[runLength];
+            }
+
+            // The first codelen of a run can't copy the previous codelen, so short runs of zeros and runs of other codelens start with a literal
+            if ((codelen != 0) || (runLength < Constants.CODELEN_ZEROS_MIN)) {
+                numCodelenLensLowerBound = Math.max(numCodelenLensLowerBound, codelenOrderIndex(codelen) + 1);
+            }
+        }
+
+        return 5L + 5L + 4L + (numCodelenLensLowerBound * 3L) + rleSizeLowerBound;
+    }
+
+    /** Returns a lower bound for the size of this block with any dynamic header, if the literals / backrefs and Huffman codes aren't changed */
+    long getSizeBitsLowerBound() {
+        if (type != DeflateBlockType.DYNAMIC) {
+            return sizeBits;
         }
 
-        final byte[] slice = new byte[(int) rlePair.dist];
+        return litlenSizeBits + getDynamicHeaderSizeBitsLowerBound();
+    }
+
+    /** Returns optimal codelens for the used symbols of the histogram, or a single unused codelen if no symbols are used */
+    private static int[] getOptimalCodeLens(int[] freq, int maxSymbols) {
+        int lastNonZero = Math.min(freq.length, maxSymbols);
 
-        switch ((int) rlePair.litlen) {
-        case Constants.CODELEN_COPY: {
-            assert prev != null;
-            Arrays.fill(slice, (byte) prev.litlen);
-            break;
+        while ((lastNonZero > 0) && (freq[lastNonZero - 1] == 0)) {
+            lastNonZero--;
         }
 
-        case Constants.CODELEN_ZEROS:
-        case Constants.CODELEN_ZEROS2: {
-            //Arrays.fill(slice, (byte)0);
-            break;
+        if (lastNonZero == 0) {
+            return new int[1];
         }
 
-        default:
-            // Invalid symbol
-            throw new RuntimeException("Invalid RLE symbol when reading encoded dynamic header pair");
+        return HuffmanTree.getCodeLengths(Arrays.copyOf(freq, lastNonZero), 15);
+    }
+
+    /**
+     * Estimates the size of a block with the given symbol histograms, without creating the block.
+     * The block is sized as the smaller of a fixed Huffman block and a dynamic block with optimal Huffman codes,
+     * with a header packed with the default options.
+     */
+    static long estimateSizeBits(int[] litlenFreq, int[] distFreq) {
+        final int[] litlenLens = getOptimalCodeLens(litlenFreq, Constants.MAX_LITLEN_LENS - 2);
+        final int[] distLens = getOptimalCodeLens(distFreq, Constants.MAX_DIST_LENS - 2);
+        long dynamicBits = 5L + 5L + 4L + (Constants.MAX_CODELEN_LENS * 3L);
+        long fixedBits = 0;
+
+        for (int sym = 0; sym < litlenFreq.length; sym++) {
+            final int freq = litlenFreq[sym];
+
+            if (freq != 0) {
+                final long ebits = sym >= Constants.LITLEN_TBL_OFFSET ? Constants.litlen_tbl[sym - Constants.LITLEN_TBL_OFFSET].ebits : 0;
+                dynamicBits += (long) freq * (litlenLens[sym] + ebits);
+                fixedBits += (long) freq * (Huffman.FIXED_LITLEN_INST.getSymLen(sym) + ebits);
+            }
+        }
+
+        for (int sym = 0; sym < distFreq.length; sym++) {
+            final int freq = distFreq[sym];
+
+            if (freq != 0) {
+                final long ebits = Constants.dist_tbl[sym].ebits;
+                dynamicBits += (long) freq * (distLens[sym] + ebits);
+                fixedBits += (long) freq * (Huffman.FIXED_DIST_INST.getSymLen(sym) + ebits);
+            }
         }
 
-        return slice;
+        if (dynamicBits >= fixedBits) {
+            // The header can only make the dynamic block larger
+            return fixedBits;
+        }
+
+        final IntList packed = HuffmanTable.packCodeLengths(litlenLens, distLens, true, true, true, false, false, false, false, false);
+        final Huffman codeLenCodes = Huffman.ofRLEPacked(packed);
+        final int packedSize = packed.size();
+
+        for (int i = 0; i < packedSize; i++) {
+            final int sym = packed.get(i);
+            final boolean isRun = sym > Constants.CODELEN_MAX_LIT;
+
+            if (isRun) {
+                // Skip run-length bits
+                i++;
+            }
+
+            dynamicBits += getRLEPairSize(LitLen.of(isRun ? 1 : 0, sym), codeLenCodes);
+        }
+
+        return Math.min(dynamicBits, fixedBits);
     }
 
     // Debug print flags
@@ -216,27 +337,38 @@ public class DeflateBlockHuffman extends DeflateBlock {
      * the encoded size of equivalent literal sequence.
      *
      * TODO Replace matches with submatches if smaller (e.g. if two matches are smaller than one)
+     * @param decoded the decoded values of checkLitlens
      * @param print allow debug printing
      * @param prune remove matches if the length is the same as well
+     * @param replaced if not null, a builder walking checkLitlens which the resulting list is built with, otherwise only the savings are estimated
+     * @param litlenFreq if not null, the symbol histograms to update when replacing
      */
-    private static long replaceWithLiteralsIfSmaller(List<LitLen> checkLitlens, Huffman decoder, Huffman distDec, boolean print, String optPrefix, boolean prune, boolean estimateOnly) {
+    private static long replaceWithLiteralsIfSmaller(ChunkedIntList checkLitlens, DecodedData decoded, Huffman decoder, Huffman distDec, boolean print, String optPrefix, boolean prune, ChunkedIntList.Builder replaced, int[] litlenFreq, int[] distFreq) {
+        final boolean estimateOnly = replaced == null;
         print = print && !estimateOnly;
+        final byte[] decodedBuffer = decoded.buffer();
+        final int decodedOffset = decoded.offset();
         final boolean litLen = distDec != null;
         long savedTotal = 0L;
         long seenRemove = 0L;
-        final ListIterator<LitLen> litIter = checkLitlens.listIterator();
+        final PrimitiveIterator.OfInt litIter = checkLitlens.iterator();
+        int index = -1;
+        int walked = 0;
+        int pos = 0;
         checkNext: while (litIter.hasNext()) {
-            final LitLen check = litIter.next();
+            final int check = litIter.nextInt();
+            index++;
+            final int start = pos;
+            final int arrSize = litLen ? LitLen.decodedLen(check) : LitLen.rleDecodedLen(check);
+            pos += arrSize;
 
             // Replace matches with literals if smaller
-            if (check.dist != 0L) {
-                assert check.decodedVal != null;
+            if (LitLen.dist(check) != 0) {
                 final int checkSize = litLen ? getLitLenSize(check, decoder, distDec) : getRLEPairSize(check, decoder);
-                final int arrSize = check.decodedVal.length;
                 int totalSize = 0;
 
-                for (int i = 0; i < arrSize; i++) {
-                    final int b = check.decodedVal[i] & 0xFF;
+                for (int i = start; i < pos; i++) {
+                    final int b = decodedBuffer[decodedOffset + i] & 0xFF;
                     final int bSize = decoder.getSymLen(b);
 
                     if (bSize < 1) {
@@ -258,7 +390,7 @@ public class DeflateBlockHuffman extends DeflateBlock {
 
                 if (DEBUG_PRINT_OPT_REFREPLACE && print) {
                     System.out.println(optPrefix + "Found size " + checkSize + ", replacing with size " + totalSize);
-                    System.out.println(optPrefix + "Original: " + check + "\nNew:");
+                    System.out.println(optPrefix + "Original: " + LitLen.toString(check) + "\nNew:");
                 }
 
                 final int saved = checkSize - totalSize;
@@ -267,18 +399,27 @@ public class DeflateBlockHuffman extends DeflateBlock {
                 seenRemove++;
 
                 if (!estimateOnly) {
-                    litIter.remove();
+                    replaced.keep(index - walked);
+                    replaced.skip();
+                    walked = index + 1;
+
+                    if (litlenFreq != null) {
+                        countLitLen(check, -1, litlenFreq, distFreq);
+                    }
 
-                    for (int i = 0; i < arrSize; i++) {
-                        final byte bNeg = check.decodedVal[i];
-                        final LitLen rep = new LitLen(bNeg & 0xFF);
-                        rep.decodedVal = new byte[] { bNeg };
+                    for (int i = start; i < pos; i++) {
+                        final int b = decodedBuffer[decodedOffset + i] & 0xFF;
+                        final int rep = LitLen.of(b);
 
                         if (DEBUG_PRINT_OPT_REFREPLACE && print) {
-                            System.out.println(rep);
+                            System.out.println(LitLen.toString(rep));
                         }
 
-                        litIter.add(rep);
+                        replaced.add(rep);
+
+                        if (litlenFreq != null) {
+                            litlenFreq[b]++;
+                        }
                     }
                 }
 
@@ -288,6 +429,12 @@ public class DeflateBlockHuffman extends DeflateBlock {
             }
         }
 
+        assert pos == decoded.length();
+
+        if (!estimateOnly) {
+            replaced.keepRest();
+        }
+
         if (estimateOnly && (savedTotal <= 0L) && (seenRemove <= 0L)) {
             return -1L;
         }
@@ -295,26 +442,33 @@ public class DeflateBlockHuffman extends DeflateBlock {
         return savedTotal;
     }
 
-    private void ensureDidCopyLitLens() {
-        if (!didCopyLitLens) {
-            litlens = new ArrayList<>(litlens);
-            didCopyLitLens = true;
+    /** Returns the decoded values of the RLE encoded codelens */
+    private byte[] getDecodedCodelens() {
+        final int[] litlenLens = litlenDec.table.codeLen;
+        final int[] distLens = distDec.table.codeLen;
+        final byte[] decoded = new byte[litlenLens.length + distLens.length];
+
+        for (int i = 0; i < litlenLens.length; i++) {
+            decoded[i] = (byte) litlenLens[i];
         }
-    }
 
-    private void ensureDidCopyRLEPairs() {
-        if (!didCopyRLEPairs) {
-            rlePairs = new ArrayList<>(rlePairs);
-            didCopyRLEPairs = true;
+        for (int i = 0; i < distLens.length; i++) {
+            decoded[litlenLens.length + i] = (byte) distLens[i];
         }
+
+        return decoded;
     }
 
     private void replaceBackrefsWithLiteralsIfSmaller(boolean prune, boolean print) {
-        if (replaceWithLiteralsIfSmaller(litlens, litlenDec, distDec, print, DEBUG_PRINT_OPT_REFREPLACE_STR, prune, true) >= 0L) {
-            ensureDidCopyLitLens();
-            final long savedLitlens = replaceWithLiteralsIfSmaller(litlens, litlenDec, distDec, print, DEBUG_PRINT_OPT_REFREPLACE_STR, prune, false);
+        if (replaceWithLiteralsIfSmaller(litlens, decodedData, litlenDec, distDec, print, DEBUG_PRINT_OPT_REFREPLACE_STR, prune, null, null, null) >= 0L) {
+            final ChunkedIntList.Builder replaced = new ChunkedIntList.Builder(litlens);
+            litlenFreq = litlenFreq.clone();
+            distFreq = distFreq.clone();
+            final long savedLitlens = replaceWithLiteralsIfSmaller(litlens, decodedData, litlenDec, distDec, print, DEBUG_PRINT_OPT_REFREPLACE_STR, prune, replaced, litlenFreq, distFreq);
+            litlens = replaced.build();
             sizeBits -= savedLitlens;
             litlenSizeBits -= savedLitlens;
+            assert litlenSizeBits == getLitLenSizeBits(litlenDec, distDec);
         }
     }
 
@@ -323,9 +477,12 @@ public class DeflateBlockHuffman extends DeflateBlock {
             return;
         }
 
-        if (replaceWithLiteralsIfSmaller(rlePairs, codeLenDec, null, print, DEBUG_PRINT_OPT_RUNREPLACE_STR, prune, true) >= 0L) {
-            ensureDidCopyRLEPairs();
-            final long savedHeader = replaceWithLiteralsIfSmaller(rlePairs, codeLenDec, null, print, DEBUG_PRINT_OPT_RUNREPLACE_STR, prune, false);
+        final DecodedData decodedCodelens = DecodedData.of(getDecodedCodelens());
+
+        if (replaceWithLiteralsIfSmaller(rlePairs, decodedCodelens, codeLenDec, null, print, DEBUG_PRINT_OPT_RUNREPLACE_STR, prune, null, null, null) >= 0L) {
+            final ChunkedIntList.Builder replaced = new ChunkedIntList.Builder(rlePairs);
+            final long savedHeader = replaceWithLiteralsIfSmaller(rlePairs, decodedCodelens, codeLenDec, null, print, DEBUG_PRINT_OPT_RUNREPLACE_STR, prune, replaced, null, null);
+            rlePairs = replaced.build();
             sizeBits -= savedHeader;
             dynamicHeaderSizeBits -= savedHeader;
         }
@@ -381,10 +538,17 @@ public class DeflateBlockHuffman extends DeflateBlock {
         final int[] litFreq = new int[Constants.MAX_DIST_LENS];
         final boolean[] litNoAllow = new boolean[Constants.MAX_DIST_LENS];
         final boolean[] litSeen = new boolean[Constants.MAX_DIST_LENS];
-        checkNext: for (final LitLen check : litlens) {
-            if (check.dist != 0L) {
-                assert check.decodedVal != null;
-                final int litlen = Constants.len2litlen((int) check.litlen, check.edgecase) - Constants.LITLEN_TBL_OFFSET;
+        final byte[] decoded = decodedData.buffer();
+        final int decodedOffset = decodedData.offset();
+        final PrimitiveIterator.OfInt litIter = litlens.iterator();
+        int pos = 0;
+        checkNext: while (litIter.hasNext()) {
+            final int check = litIter.nextInt();
+            final int start = pos;
+            pos += LitLen.decodedLen(check);
+
+            if (LitLen.dist(check) != 0) {
+                final int litlen = Constants.len2litlen(LitLen.litlen(check), LitLen.edgecase(check)) - Constants.LITLEN_TBL_OFFSET;
 
                 if (litNoAllow[litlen]) {
                     continue;
@@ -394,8 +558,8 @@ public class DeflateBlockHuffman extends DeflateBlock {
                 final int checkSize = getLitLenSize(check, litlenDec, distDec);
                 int totalSize = 0;
 
-                for (final byte value : check.decodedVal) {
-                    final int bSize = litlenDec.getSymLen(value & 0xFF);
+                for (int i = start; i < pos; i++) {
+                    final int bSize = litlenDec.getSymLen(decoded[decodedOffset + i] & 0xFF);
 
                     if (bSize < 1) {
                         // No symbol for this literal, can't remove
@@ -428,33 +592,37 @@ public class DeflateBlockHuffman extends DeflateBlock {
         }
 
         if (litlenRem >= 0) {
-            ensureDidCopyLitLens();
-            final ListIterator<LitLen> litIter = litlens.listIterator();
-
-            while (litIter.hasNext()) {
-                final LitLen check = litIter.next();
-
-                if (check.dist != 0L) {
-                    assert check.decodedVal != null;
-                    final int litlen = Constants.len2litlen((int) check.litlen, check.edgecase) - Constants.LITLEN_TBL_OFFSET;
-
-                    if (litlen != litlenRem) {
-                        continue;
-                    }
+            final ChunkedIntList.Builder replaced = new ChunkedIntList.Builder(litlens);
+            litlenFreq = litlenFreq.clone();
+            distFreq = distFreq.clone();
+            pos = 0;
+
+            while (replaced.hasNext()) {
+                final int check = replaced.peek();
+                final int start = pos;
+                pos += LitLen.decodedLen(check);
+
+                if ((LitLen.dist(check) == 0) || ((Constants.len2litlen(LitLen.litlen(check), LitLen.edgecase(check)) - Constants.LITLEN_TBL_OFFSET) != litlenRem)) {
+                    replaced.keep();
+                    continue;
+                }
 
-                    litIter.remove();
+                replaced.skip();
+                countLitLen(check, -1, litlenFreq, distFreq);
 
-                    for (final byte bNeg : check.decodedVal) {
-                        final LitLen rep = new LitLen(bNeg & 0xFF);
-                        rep.decodedVal = new byte[] { bNeg };
-                        litIter.add(rep);
-                    }
+                for (int i = start; i < pos; i++) {
+                    final int b = decoded[decodedOffset + i] & 0xFF;
+                    replaced.add(LitLen.of(b));
+                    litlenFreq[b]++;
                 }
             }
+
+            litlens = replaced.build();
         }
 
         sizeBits += litlenRemSize;
         litlenSizeBits += litlenRemSize;
+        assert litlenSizeBits == getLitLenSizeBits(litlenDec, distDec);
     }
 
     @Override
@@ -486,6 +654,11 @@ public class DeflateBlockHuffman extends DeflateBlock {
             return;
         }
 
+        rewriteHeader(HuffmanTable.packCodeLengths(litlenDec.table.codeLen, distDec.table.codeLen, ohh, use8, use7, alt8, noRep, noZRep, noZRep2, noRepZeros));
+    }
+
+    /** Rewrites the dynamic header with the given packed codelens */
+    private void rewriteHeader(IntList repack) {
         if (DEBUG_PRINT_HEADER_RECODE) {
             System.out.println("Original header size: " + dynamicHeaderSizeBits + "\nOriginal size: " + sizeBits);
         }
@@ -494,8 +667,6 @@ public class DeflateBlockHuffman extends DeflateBlock {
         dynamicHeaderSizeBits = 0L;
         numLitlenLens = litlenDec.table.codeLen.length;
         numDistLens = distDec.table.codeLen.length;
-        didCopyRLEPairs = true;
-        final List<Integer> repack = HuffmanTable.packCodeLengths(litlenDec.table.codeLen, distDec.table.codeLen, ohh, use8, use7, alt8, noRep, noZRep, noZRep2, noRepZeros);
         codeLenDec = Huffman.ofRLEPacked(repack);
         //codelenLengths = new int[Constants.MAX_CODELEN_LENS];
         //System.arraycopy(codeLenDec.table.codeLen, 0, codelenLengths, 0, codeLenDec.table.codeLen.length);
@@ -504,51 +675,42 @@ public class DeflateBlockHuffman extends DeflateBlock {
         //dynamicHeaderSizeBits = 5L + 5L + 4L + (numCodelenLens * 3L);
         dynamicHeaderSizeBits = 5L + 5L + 4L + (Constants.MAX_CODELEN_LENS * 3L);
         int i = 0;
-        final Iterator<Integer> iter = repack.iterator();
-        LitLen prePair = null;
+        int repackPos = 0;
         final int combinedLens = numLitlenLens + numDistLens;
-        rlePairs = new ArrayList<>(combinedLens);
+        final ChunkedIntList.Builder newRLEPairs = new ChunkedIntList.Builder();
 
         while (i < combinedLens) {
-            final int sym = iter.next();
+            final int sym = repack.get(repackPos++);
             int dist;
-            byte[] decodedVal;
 
             if ((sym >= 0) && (sym <= Constants.CODELEN_MAX_LIT)) {
                 dist = 0;
-                decodedVal = new byte[] { (byte) sym };
                 i++;
             } else {
-                dist = iter.next();
+                dist = repack.get(repackPos++);
 
                 switch (sym) {
                 case Constants.CODELEN_COPY: {
                     // 2 bits + 3
                     dist += Constants.CODELEN_COPY_MIN;
-                    decodedVal = new byte[dist];
-                    assert prePair != null;
+                    assert i > 0;
                     assert (dist >= Constants.CODELEN_COPY_MIN) && (dist <= Constants.CODELEN_COPY_MAX);
-                    Arrays.fill(decodedVal, prePair.decodedVal[prePair.decodedVal.length - 1]);
                     break;
                 }
 
                 case Constants.CODELEN_ZEROS: {
                     // 3 bits + 3
                     dist += Constants.CODELEN_ZEROS_MIN;
-                    decodedVal = new byte[dist];
                     assert (dist >= Constants.CODELEN_ZEROS_MIN) &&
                     (dist <= Constants.CODELEN_ZEROS_MAX);
-                    //Arrays.fill(decodedVal, (byte) 0);
                     break;
                 }
 
                 case Constants.CODELEN_ZEROS2: {
                     // 7 bits + 138
                     dist += Constants.CODELEN_ZEROS2_MIN;
-                    decodedVal = new byte[dist];
                     assert (dist >= Constants.CODELEN_ZEROS2_MIN) &&
                     (dist <= Constants.CODELEN_ZEROS2_MAX);
-                    //Arrays.fill(decodedVal, (byte) 0);
                     break;
                 }
 
@@ -560,14 +722,13 @@ public class DeflateBlockHuffman extends DeflateBlock {
                 i += dist;
             }
 
-            final LitLen rlePair = new LitLen(dist, sym);
-            rlePair.decodedVal = decodedVal;
-            rlePairs.add(rlePair);
+            final int rlePair = LitLen.of(dist, sym);
+            newRLEPairs.add(rlePair);
             dynamicHeaderSizeBits += getRLEPairSize(rlePair, codeLenDec);
-            prePair = rlePair;
         }
 
-        assert !iter.hasNext();
+        rlePairs = newRLEPairs.build();
+        assert repackPos == repack.size();
         sizeBits += dynamicHeaderSizeBits;
         removeTrailingHeaderCodes(false);
 
@@ -576,6 +737,110 @@ public class DeflateBlockHuffman extends DeflateBlock {
         }
     }
 
+    /** Maximum amount of times the codelens are packed when searching for the smallest header */
+    private static final int MAX_OPTIMAL_HEADER_ITERATIONS = 16;
+
+    /** Returns the encoded size of each codelen symbol, with unused symbols sized as the longest possible code */
+    private int[] getCodelenSymSizes() {
+        final int[] symSizes = new int[Constants.MAX_CODELEN_LENS];
+
+        for (int i = 0; i < symSizes.length; i++) {
+            symSizes[i] = (i < codelenLengths.length) && (codelenLengths[i] != 0) ? codelenLengths[i] : 7;
+        }
+
+        return symSizes;
+    }
+
+    /**
+     * Rewrites the dynamic header by packing the codelens with the smallest size for the current codelen code,
+     * then rebuilding the codelen code for the new packed codelens, until the header stops getting smaller.
+     * The header is never made larger.
+     */
+    public void rewriteHeaderOptimal() {
+        if (type != DeflateBlockType.DYNAMIC) {
+            return;
+        }
+
+        DynamicHeader best = getDynamicHeader();
+
+        for (int i = 0; i < MAX_OPTIMAL_HEADER_ITERATIONS; i++) {
+            rewriteHeader(HuffmanTable.packCodeLengthsOptimal(litlenDec.table.codeLen, distDec.table.codeLen, getCodelenSymSizes()));
+
+            if (dynamicHeaderSizeBits >= best.sizeBits) {
+                break;
+            }
+
+            best = getDynamicHeader();
+        }
+
+        setDynamicHeader(best);
+    }
+
+    /** A dynamic header, which can be shared between blocks with the same Huffman codes */
+    static final class DynamicHeader {
+        private final Huffman codeLenDec;
+        private final int numLitlenLens;
+        private final int numDistLens;
+        private final int numCodelenLens;
+        private final int[] codelenLengths;
+        private final ChunkedIntList rlePairs;
+        private final long sizeBits;
+
+        private DynamicHeader(Huffman codeLenDec, int numLitlenLens, int numDistLens, int numCodelenLens, int[] codelenLengths, ChunkedIntList rlePairs, long sizeBits) {
+            this.codeLenDec = codeLenDec;
+            this.numLitlenLens = numLitlenLens;
+            this.numDistLens = numDistLens;
+            this.numCodelenLens = numCodelenLens;
+            this.codelenLengths = codelenLengths;
+            this.rlePairs = rlePairs;
+            this.sizeBits = sizeBits;
+        }
+
+        long getSizeBits() {
+            return sizeBits;
+        }
+
+        /** Returns true if both headers are written identically */
+        boolean isSameHeader(DynamicHeader other) {
+            return (sizeBits == other.sizeBits) && (numLitlenLens == other.numLitlenLens) && (numDistLens == other.numDistLens) && (numCodelenLens == other.numCodelenLens) && Arrays.equals(codelenLengths, other.codelenLengths) && Arrays.equals(rlePairs.toArray(), other.rlePairs.toArray());
+        }
+    }
+
+    DynamicHeader getDynamicHeader() {
+        assert type == DeflateBlockType.DYNAMIC;
+        return new DynamicHeader(codeLenDec, numLitlenLens, numDistLens, numCodelenLens, codelenLengths, rlePairs, dynamicHeaderSizeBits);
+    }
+
+    /** Replaces the dynamic header with one created for the same Huffman codes */
+    void setDynamicHeader(DynamicHeader header) {
+        assert type == DeflateBlockType.DYNAMIC;
+        assert (header.numLitlenLens == litlenDec.table.codeLen.length) && (header.numDistLens == distDec.table.codeLen.length);
+        sizeBits -= dynamicHeaderSizeBits;
+        codeLenDec = header.codeLenDec;
+        numLitlenLens = header.numLitlenLens;
+        numDistLens = header.numDistLens;
+        numCodelenLens = header.numCodelenLens;
+        codelenLengths = header.codelenLengths;
+        rlePairs = header.rlePairs;
+        dynamicHeaderSizeBits = header.sizeBits;
+        sizeBits += dynamicHeaderSizeBits;
+    }
+
+    /** Returns the size of this block if it used the given dynamic header */
+    long getSizeBits(DynamicHeader header) {
+        return (sizeBits - dynamicHeaderSizeBits) + header.sizeBits;
+    }
+
+    /** Returns the litlen code lengths. The returned array must not be modified. */
+    int[] getLitlenCodeLens() {
+        return litlenDec.table.codeLen;
+    }
+
+    /** Returns the dist code lengths. The returned array must not be modified. */
+    int[] getDistCodeLens() {
+        return distDec.table.codeLen;
+    }
+
     public void recodeHeader() {
         if (type != DeflateBlockType.DYNAMIC) {
             return;
@@ -583,7 +848,7 @@ public class DeflateBlockHuffman extends DeflateBlock {
 
         sizeBits -= dynamicHeaderSizeBits;
         dynamicHeaderSizeBits = 0L;
-        final Collection<Integer> lengths = new ArrayList<>();
+        final IntList lengths = new IntList(rlePairs.size() * 2);
         /*numLitlenLens = 0;
         numDistLens = 0;
         final Set<Integer> uniqueLit = new HashSet<>();
@@ -601,13 +866,16 @@ public class DeflateBlockHuffman extends DeflateBlock {
         numLitlenLens = Math.max(uniqueLit.size(), Constants.MIN_LITLEN_LENS);
         numDistLens = Math.max(uniqueDist.size(), Constants.MIN_DIST_LENS);*/
         int rleTotal = 0;
+        PrimitiveIterator.OfInt rleIter = rlePairs.iterator();
 
-        for (final LitLen rlePair : rlePairs) {
-            lengths.add((int) rlePair.litlen);
+        while (rleIter.hasNext()) {
+            final int rlePair = rleIter.nextInt();
+            final int dist = LitLen.dist(rlePair);
+            lengths.add(LitLen.litlen(rlePair));
 
-            if (rlePair.dist > 0L) {
-                lengths.add((int) rlePair.dist);
-                rleTotal += (int) rlePair.dist;
+            if (dist > 0) {
+                lengths.add(dist);
+                rleTotal += dist;
             } else {
                 rleTotal++;
             }
@@ -620,9 +888,10 @@ public class DeflateBlockHuffman extends DeflateBlock {
         codelenLengths = codeLenDec.table.codeLen;
         removeDynHeaderTrailingZeroLenCodelens(false);
         dynamicHeaderSizeBits = 5L + 5L + 4L + (numCodelenLens * 3L);
+        rleIter = rlePairs.iterator();
 
-        for (final LitLen rlePair : rlePairs) {
-            dynamicHeaderSizeBits += getRLEPairSize(rlePair, codeLenDec);
+        while (rleIter.hasNext()) {
+            dynamicHeaderSizeBits += getRLEPairSize(rleIter.nextInt(), codeLenDec);
         }
 
         sizeBits += dynamicHeaderSizeBits;
@@ -648,7 +917,6 @@ public class DeflateBlockHuffman extends DeflateBlock {
         numCodelenLens = 0;
         codelenLengths = null;
         rlePairs = null;
-        didCopyRLEPairs = true;
         recodeToHuffmanInternal(Huffman.FIXED_LITLEN_INST, Huffman.FIXED_DIST_INST);
     }
 
@@ -657,6 +925,149 @@ public class DeflateBlockHuffman extends DeflateBlock {
         recodeHuffman();
     }
 
+    /**
+     * Replaces the distance of each backref with the distance to an equal sequence which is cheapest to code with the block's current Huffman codes.
+     * Returns the amount of bits saved.
+     */
+    long reselectDistances(DistanceIndex index) {
+        final ChunkedIntList.Builder reselected = new ChunkedIntList.Builder(litlens);
+        final int[] newDistFreq = distFreq.clone();
+        long saved = 0L;
+        int pos = 0;
+
+        while (reselected.hasNext()) {
+            final int litlenThis = reselected.peek();
+            final int distance = LitLen.dist(litlenThis);
+            pos += LitLen.decodedLen(litlenThis);
+
+            if (distance > 0) {
+                final int len = LitLen.litlen(litlenThis);
+                final int newDistance = index.findCheapestDistance(pos - len, len, distance, distDec);
+
+                if (newDistance != distance) {
+                    final int newLitlen = LitLen.of(newDistance, len, LitLen.edgecase(litlenThis));
+                    saved += getLitLenSize(litlenThis, litlenDec, distDec) - getLitLenSize(newLitlen, litlenDec, distDec);
+                    newDistFreq[Constants.distance2dist(distance)]--;
+                    newDistFreq[Constants.distance2dist(newDistance)]++;
+                    reselected.skip();
+                    reselected.add(newLitlen);
+                    continue;
+                }
+            }
+
+            reselected.keep();
+        }
+
+        if (saved > 0L) {
+            litlens = reselected.build();
+            distFreq = newDistFreq;
+            sizeBits -= saved;
+            litlenSizeBits -= saved;
+            assert litlenSizeBits == getLitLenSizeBits(litlenDec, distDec);
+        }
+
+        return saved;
+    }
+
+    /** Size of a symbol without a code when re-deciding literals / backrefs, as if it had the longest allowed code */
+    private static final int UNUSED_SYMBOL_SIZE = 15;
+
+    private static int getSymbolSize(Huffman codes, int sym) {
+        final int size = sym < codes.table.codeLen.length ? codes.getSymLen(sym) : 0;
+        return size > 0 ? size : UNUSED_SYMBOL_SIZE;
+    }
+
+    /**
+     * Re-decides every literal / backref by finding the cheapest path through the backrefs of the current parse, using the sizes of the current Huffman codes,
+     * then recodes the block with an optimal dynamic Huffman table.
+     * Any part of a backref which is at least the minimum length can be used with the same distance,
+     * so each backref can be kept, shortened, split into several backrefs, or replaced with literals.
+     */
+    public void squeeze() {
+        final int size = decodedData.length();
+        final byte[] decoded = decodedData.buffer();
+        final int decodedOffset = decodedData.offset();
+        // Distance and end of the backref covering each position, if there is one
+        final int[] distances = new int[size];
+        final int[] ends = new int[size];
+        final PrimitiveIterator.OfInt iter = litlens.iterator();
+        int pos = 0;
+
+        while (iter.hasNext()) {
+            final int litlenThis = iter.nextInt();
+            final int len = LitLen.decodedLen(litlenThis);
+
+            if (LitLen.dist(litlenThis) > 0) {
+                Arrays.fill(distances, pos, pos + len, LitLen.dist(litlenThis));
+                Arrays.fill(ends, pos, pos + len, pos + len);
+            }
+
+            pos += len;
+        }
+
+        final int[] lenSizes = new int[Constants.MAX_LEN + 1];
+
+        for (int len = Constants.MIN_LEN; len <= Constants.MAX_LEN; len++) {
+            final int sym = Constants.len2litlen(len, false);
+            lenSizes[len] = getSymbolSize(litlenDec, sym) + (int) Constants.litlen_tbl[sym - Constants.LITLEN_TBL_OFFSET].ebits;
+        }
+
+        final long[] pathSizes = new long[size + 1];
+        // The literal / backref which ends the cheapest path to each position
+        final int[] pathLitlens = new int[size + 1];
+        Arrays.fill(pathSizes, Long.MAX_VALUE);
+        pathSizes[0] = 0L;
+
+        for (int i = 0; i < size; i++) {
+            final int literal = decoded[decodedOffset + i] & 0xFF;
+            final long literalSize = pathSizes[i] + getSymbolSize(litlenDec, literal);
+
+            if (literalSize < pathSizes[i + 1]) {
+                pathSizes[i + 1] = literalSize;
+                pathLitlens[i + 1] = LitLen.of(literal);
+            }
+
+            final int distance = distances[i];
+
+            if (distance > 0) {
+                final int dist = Constants.distance2dist(distance);
+                final long distSize = pathSizes[i] + getSymbolSize(distDec, dist) + Constants.dist_tbl[dist].ebits;
+
+                for (int len = Constants.MIN_LEN; len <= (ends[i] - i); len++) {
+                    final long backrefSize = distSize + lenSizes[len];
+
+                    if (backrefSize < pathSizes[i + len]) {
+                        pathSizes[i + len] = backrefSize;
+                        pathLitlens[i + len] = LitLen.of(distance, len);
+                    }
+                }
+            }
+        }
+
+        // Walk the cheapest path back from the end
+        final IntList path = new IntList();
+
+        for (int i = size; i > 0; i -= LitLen.decodedLen(pathLitlens[i])) {
+            path.add(pathLitlens[i]);
+        }
+
+        final ChunkedIntList.Builder squeezed = new ChunkedIntList.Builder();
+        final int[] newLitlenFreq = new int[litlenFreq.length];
+        final int[] newDistFreq = new int[distFreq.length];
+
+        for (int i = path.size() - 1; i >= 0; i--) {
+            squeezed.add(path.get(i));
+            countLitLen(path.get(i), 1, newLitlenFreq, newDistFreq);
+        }
+
+        squeezed.add(LitLen.of(Constants.LITLEN_EOB));
+        newLitlenFreq[Constants.LITLEN_EOB]++;
+        litlens = squeezed.build();
+        litlenFreq = newLitlenFreq;
+        distFreq = newDistFreq;
+        recodeHuffman();
+    }
+
     /**
      * This can legally be 0 according to the deflate spec,
      * but some decoders need larger values.
@@ -668,17 +1079,8 @@ public class DeflateBlockHuffman extends DeflateBlock {
     private static final int MIN_LIT_CODES = 0;
 
     public void recodeHuffman() {
-        final int[] litFreqTemp = new int[Constants.MAX_LITLEN_LENS - 2];
-        final int[] distFreqTemp = new int[Constants.MAX_DIST_LENS - 2];
-
-        for (final LitLen litlenThis : litlens) {
-            if (litlenThis.dist > 0L) {
-                litFreqTemp[Constants.len2litlen((int) litlenThis.litlen, litlenThis.edgecase)]++;
-                distFreqTemp[Constants.distance2dist(litlenThis.dist)]++;
-            } else {
-                litFreqTemp[(int) litlenThis.litlen]++;
-            }
-        }
+        final int[] litFreqTemp = Arrays.copyOf(litlenFreq, Constants.MAX_LITLEN_LENS - 2);
+        final int[] distFreqTemp = Arrays.copyOf(distFreq, Constants.MAX_DIST_LENS - 2);
 
         int lastNonZeroLit = litFreqTemp.length;
 
@@ -729,17 +1131,17 @@ public class DeflateBlockHuffman extends DeflateBlock {
             i++;
         }
 
-        final Huffman newLit = new Huffman(new HuffmanTree(litFreq, 15).getTable());
+        final Huffman newLit = Huffman.ofCodelens(HuffmanTree.getCodeLengths(litFreq, 15));
         // TODO This code isn't good
         final boolean handleOne = !handleZero && (MIN_DIST_CODES <= 1) && (Util.checkNonZero(distFreq) <= 1);
-        final Huffman newDist = (handleZero || handleOne) ? new Huffman(new HuffmanTable(handleZero ? 1 : realLastNonZeroDist)) : new Huffman(new HuffmanTree(distFreq, 15).getTable());
+        final HuffmanTable newDistTable = (handleZero || handleOne) ? new HuffmanTable(handleZero ? 1 : realLastNonZeroDist) : new HuffmanTree(distFreq, 15).getTable();
 
         if (handleOne) {
-            newDist.table.codeLen[realLastNonZeroDist - 1] = 1;
-            newDist.table.code[realLastNonZeroDist - 1] = 0;
+            newDistTable.codeLen[realLastNonZeroDist - 1] = 1;
+            newDistTable.code[realLastNonZeroDist - 1] = 0;
         }
 
-        recodeToHuffman(newLit, newDist);
+        recodeToHuffman(newLit, new Huffman(newDistTable));
     }
 
     private void recodeToHuffman(Huffman newLitlenDec, Huffman newDistDec) {
@@ -760,11 +1162,7 @@ public class DeflateBlockHuffman extends DeflateBlock {
         litlenDec = newLitlenDec;
         distDec = newDistDec;
         sizeBits -= litlenSizeBits;
-        litlenSizeBits = 0L;
-
-        for (final LitLen litlenThis : litlens) {
-            litlenSizeBits += getLitLenSize(litlenThis, litlenDec, distDec);
-        }
+        litlenSizeBits = getLitLenSizeBits(litlenDec, distDec);
 
         sizeBits += litlenSizeBits;
     }
@@ -775,10 +1173,11 @@ public class DeflateBlockHuffman extends DeflateBlock {
     // Try to print the parsed data as text
     private static final boolean DEBUG_PRINT_TEXT = false;
 
-    private boolean decodeStream(BitInputStream is) throws IOException {
-        startTemp();
-        litlens = new ArrayList<>();
-        didCopyLitLens = true;
+    private boolean decodeStream(BitInputStream is, DecodeWindow window) throws IOException {
+        final int blockStart = window.size();
+        final ChunkedIntList.Builder readLitlens = new ChunkedIntList.Builder();
+        litlenFreq = new int[Constants.MAX_LITLEN_LENS];
+        distFreq = new int[Constants.MAX_DIST_LENS];
 
         if (DEBUG_PRINT_PARSE) {
             System.out.println("Begin litlen parsing");
@@ -799,14 +1198,12 @@ public class DeflateBlockHuffman extends DeflateBlock {
                     System.out.println("Literal " + Util.printableStr((char) litlen, !DEBUG_PRINT_TEXT));
                 }
 
-                final LitLen readLit = new LitLen(litlen);
-                final byte decByte = (byte) litlen;
-                readLit.decodedVal = new byte[] { decByte };
                 final int encodedSize = litlenDecSym.codeLen;
                 sizeBits += encodedSize;
                 litlenSizeBits += encodedSize;
-                litlens.add(readLit);
-                writeTemp(litlen);
+                readLitlens.add(LitLen.of(litlen));
+                litlenFreq[litlen]++;
+                window.write(litlen);
                 continue;
             }
 
@@ -816,12 +1213,13 @@ public class DeflateBlockHuffman extends DeflateBlock {
                     System.out.println("EOB");
                 }
 
-                final LitLen readLit = new LitLen(Constants.LITLEN_EOB);
                 final int encodedSize = litlenDecSym.codeLen;
                 sizeBits += encodedSize;
                 litlenSizeBits += encodedSize;
-                litlens.add(readLit);
-                finishTemp();
+                readLitlens.add(LitLen.of(Constants.LITLEN_EOB));
+                litlenFreq[Constants.LITLEN_EOB]++;
+                litlens = readLitlens.build();
+                decodedData = window.viewFrom(blockStart);
                 return true;
             }
 
@@ -865,7 +1263,6 @@ public class DeflateBlockHuffman extends DeflateBlock {
             }
 
             assert (dist >= Constants.MIN_DISTANCE) && (dist <= Constants.MAX_DISTANCE);
-            final LitLen readLen = new LitLen(dist, len, edgecase);
             sizeBits += totalSize;
             litlenSizeBits += totalSize;
 
@@ -875,16 +1272,18 @@ public class DeflateBlockHuffman extends DeflateBlock {
                 System.out.print("Backref distance " + dist + " size " + len + " ");
             }
 
-            readLen.decodedVal = readSlice(dist, len);
-            /*if (litlens.contains(readLen)) {
-                readLen.decodedVal = litlens.get(litlens.indexOf(readLen)).decodedVal;
-            }*/
-            litlens.add(readLen);
-            writeTemp(readLen.decodedVal);
+            if (!window.copy((int) dist, (int) len)) {
+                // Backref before the start of the stream
+                return false;
+            }
+
+            readLitlens.add(LitLen.of(dist, len, edgecase));
+            litlenFreq[litlen]++;
+            distFreq[distsym]++;
 
             // Print the other half of the message
             if (DEBUG_PRINT_PARSE) {
-                System.out.println("decoded " + Util.printableStr(readLen.decodedVal, !DEBUG_PRINT_TEXT));
+                System.out.println("decoded " + Util.printableStr(window.copyFrom(window.size() - (int) len), !DEBUG_PRINT_TEXT));
             }
         }
     }
@@ -911,8 +1310,7 @@ public class DeflateBlockHuffman extends DeflateBlock {
         // TODO temporary attempt at reducing memory use
         codelenLengths = codeLenDec.table.codeLen;
         final int[] codeLengths = new int[Constants.MAX_LITLEN_LENS + Constants.MAX_DIST_LENS];
-        rlePairs = new ArrayList<>();
-        didCopyRLEPairs = true;
+        final ChunkedIntList.Builder readRLEPairs = new ChunkedIntList.Builder();
         int i = 0;
         final int combinedLens = numLitlenLens + numDistLens;
 
@@ -921,14 +1319,12 @@ public class DeflateBlockHuffman extends DeflateBlock {
             dynamicHeaderSizeBits += decodedSym.codeLen;
             final int sym = decodedSym.decoded;
             final int dist;
-            byte[] decodedVal;
 
             if ((sym >= 0) && (sym <= Constants.CODELEN_MAX_LIT)) {
                 // A literal codeword length
                 codeLengths[i] = sym;
                 i++;
                 dist = 0;
-                decodedVal = new byte[] { (byte) sym };
             } else {
                 switch (sym) {
                 case Constants.CODELEN_COPY: {
@@ -947,9 +1343,7 @@ public class DeflateBlockHuffman extends DeflateBlock {
                         return false;
                     }
 
-                    decodedVal = new byte[n];
-                    final byte prev = (byte) codeLengths[i - 1];
-                    Arrays.fill(decodedVal, prev);
+                    final int prev = codeLengths[i - 1];
                     Arrays.fill(codeLengths, i, i += n, prev);
                     break;
                 }
@@ -966,7 +1360,6 @@ public class DeflateBlockHuffman extends DeflateBlock {
                         return false;
                     }
 
-                    decodedVal = new byte[n];
                     i += n;
                     break;
                 }
@@ -983,7 +1376,6 @@ public class DeflateBlockHuffman extends DeflateBlock {
                         return false;
                     }
 
-                    decodedVal = new byte[n];
                     i += n;
                     break;
                 }
@@ -994,11 +1386,10 @@ public class DeflateBlockHuffman extends DeflateBlock {
                 }
             }
 
-            final LitLen rlePair = new LitLen(dist, sym);
-            rlePair.decodedVal = decodedVal;
-            rlePairs.add(rlePair);
+            readRLEPairs.add(LitLen.of(dist, sym));
         }
 
+        rlePairs = readRLEPairs.build();
         final int[] litlenCodeLengths = new int[numLitlenLens];
         final int[] distCodeLengths = new int[numDistLens];
         System.arraycopy(codeLengths, 0, litlenCodeLengths, 0, numLitlenLens);
@@ -1016,7 +1407,7 @@ public class DeflateBlockHuffman extends DeflateBlock {
     }
 
     @Override
-    public boolean parse(BitInputStream is) throws IOException {
+    boolean parse(BitInputStream is, DecodeWindow window) throws IOException {
         sizeBits = 0L;
 
         if (type == DeflateBlockType.DYNAMIC) {
@@ -1027,7 +1418,7 @@ public class DeflateBlockHuffman extends DeflateBlock {
             return false;
         }
 
-        return decodeStream(is);
+        return decodeStream(is, window);
     }
 
     private boolean writeHuffCode(BitOutputStream os) throws IOException {
@@ -1050,21 +1441,25 @@ public class DeflateBlockHuffman extends DeflateBlock {
         int i = 0;
 
         // Encoded dynamic code lengths
-        for (final LitLen rlePair : rlePairs) {
-            final long sym = rlePair.litlen;
-            os.writeNBits(codeLenDec.getSym((int) sym), codeLenDec.getSymLen((int) sym));
+        final PrimitiveIterator.OfInt rleIter = rlePairs.iterator();
 
-            if (rlePair.dist == 0L) {
+        while (rleIter.hasNext()) {
+            final int rlePair = rleIter.nextInt();
+            final int sym = LitLen.litlen(rlePair);
+            final int dist = LitLen.dist(rlePair);
+            os.writeNBits(codeLenDec.getSym(sym), codeLenDec.getSymLen(sym));
+
+            if (dist == 0) {
                 i++;
                 assert sym <= Constants.CODELEN_MAX_LIT;
             } else {
                 final int writeDistOffset;
                 final int writeDistSize;
 
-                switch ((int) sym) {
+                switch (sym) {
                 case Constants.CODELEN_COPY: {
                     // 2 bits + 3
-                    assert (rlePair.dist >= Constants.CODELEN_COPY_MIN) && (rlePair.dist <= Constants.CODELEN_COPY_MAX);
+                    assert (dist >= Constants.CODELEN_COPY_MIN) && (dist <= Constants.CODELEN_COPY_MAX);
                     writeDistOffset = Constants.CODELEN_COPY_MIN;
                     writeDistSize = 2;
                     break;
@@ -1072,8 +1467,8 @@ public class DeflateBlockHuffman extends DeflateBlock {
 
                 case Constants.CODELEN_ZEROS: {
                     // 3 bits + 3
-                    assert (rlePair.dist >= Constants.CODELEN_ZEROS_MIN) &&
-                    (rlePair.dist <= Constants.CODELEN_ZEROS_MAX);
+                    assert (dist >= Constants.CODELEN_ZEROS_MIN) &&
+                    (dist <= Constants.CODELEN_ZEROS_MAX);
                     writeDistOffset = Constants.CODELEN_ZEROS_MIN;
                     writeDistSize = 3;
                     break;
@@ -1081,8 +1476,8 @@ public class DeflateBlockHuffman extends DeflateBlock {
 
                 case Constants.CODELEN_ZEROS2: {
                     // 7 bits + 138
-                    assert (rlePair.dist >= Constants.CODELEN_ZEROS2_MIN) &&
-                    (rlePair.dist <= Constants.CODELEN_ZEROS2_MAX);
+                    assert (dist >= Constants.CODELEN_ZEROS2_MIN) &&
+                    (dist <= Constants.CODELEN_ZEROS2_MAX);
                     writeDistOffset = Constants.CODELEN_ZEROS2_MIN;
                     writeDistSize = 7;
                     break;
@@ -1093,8 +1488,8 @@ public class DeflateBlockHuffman extends DeflateBlock {
                     return false;
                 }
 
-                os.writeNBits(rlePair.dist - writeDistOffset, writeDistSize);
-                i += rlePair.dist;
+                os.writeNBits((long) dist - writeDistOffset, writeDistSize);
+                i += dist;
             }
         }
 
@@ -1104,7 +1499,7 @@ public class DeflateBlockHuffman extends DeflateBlock {
 
     private void writeSym(BitOutputStream os, long val) throws IOException {
         assert val <= Constants.LITLEN_EOB;
-        os.writeNBits(litlenDec.getSym((int) val), litlenDec.getSymLen((int) val));
+        os.writeBits(litlenDec.getSym((int) val), litlenDec.getSymLen((int) val));
     }
 
     private void writeBackref(BitOutputStream os, long len, long distance, boolean edgecase) throws IOException {
@@ -1126,20 +1521,24 @@ public class DeflateBlockHuffman extends DeflateBlock {
         ebits = distance - Constants.dist_tbl[(int) dist].baseDist;
         bits |= ebits << nbits;
         nbits += Constants.dist_tbl[(int) dist].ebits;
-        os.writeNBits(bits, (int) nbits);
+        os.writeBits(bits, (int) nbits);
     }
 
-    private void writeLitLen(BitOutputStream os, LitLen litlenThis) throws IOException {
-        if (litlenThis.dist == 0L) {
-            writeSym(os, litlenThis.litlen);
+    private void writeLitLen(BitOutputStream os, int litlenThis) throws IOException {
+        final int dist = LitLen.dist(litlenThis);
+
+        if (dist == 0) {
+            writeSym(os, LitLen.litlen(litlenThis));
         } else {
-            writeBackref(os, litlenThis.litlen, litlenThis.dist, litlenThis.edgecase);
+            writeBackref(os, LitLen.litlen(litlenThis), dist, LitLen.edgecase(litlenThis));
         }
     }
 
     private boolean writeDefBlock(BitOutputStream os) throws IOException {
-        for (final LitLen litlenThis : litlens) {
-            writeLitLen(os, litlenThis);
+        final PrimitiveIterator.OfInt litIter = litlens.iterator();
+
+        while (litIter.hasNext()) {
+            writeLitLen(os, litIter.nextInt());
         }
 
         return true;
@@ -1156,7 +1555,7 @@ public class DeflateBlockHuffman extends DeflateBlock {
     }
 
     @Override
-    byte[] getUncompressedData() {
+    DecodedData getDecodedData() {
         return decodedData;
     }
 
@@ -1177,12 +1576,10 @@ public class DeflateBlockHuffman extends DeflateBlock {
         copy(this, compressedBlock);
         compressedBlock.litlenDec = litlenDec.copy();
         compressedBlock.distDec = distDec.copy();
-        /*for (final LitLen litlen : litlens) {
-            compressedBlock.litlens.add(litlen.copy());
-        }*/
         compressedBlock.litlens = litlens;
-        compressedBlock.finishedDec = true;
-        compressedBlock.dataPos = dataPos;
+        // Histograms are replaced rather than modified, so they can be shared
+        compressedBlock.litlenFreq = litlenFreq;
+        compressedBlock.distFreq = distFreq;
         compressedBlock.sizeBits = sizeBits;
         compressedBlock.litlenSizeBits = litlenSizeBits;
         //compressedBlock.decodedData = new byte[decodedData.length];
@@ -1220,51 +1617,158 @@ public class DeflateBlockHuffman extends DeflateBlock {
             }
         }*/
         litlens = null;
+        litlenFreq = null;
+        distFreq = null;
         rlePairs = null;
     }
 
-    // TODO Merge dynamic blocks
+    ChunkedIntList getLitlens() {
+        return litlens;
+    }
+
+    /** Returns the litlen histogram. The histogram is shared with copies of the block, and must not be modified. */
+    int[] getLitlenFreq() {
+        return litlenFreq;
+    }
+
+    /** Returns the distance histogram. The histogram is shared with copies of the block, and must not be modified. */
+    int[] getDistFreq() {
+        return distFreq;
+    }
+
+    /**
+     * Splits the block into two blocks, where the first block has the literals / backrefs before the given index, and the second block has the rest.
+     * Both blocks are recoded with optimal Huffman codes for their own literals / backrefs.
+     * The index must leave at least one literal / backref in each block.
+     */
+    DeflateBlockHuffman[] split(int index) {
+        final int count = litlens.size() - 1;
+        assert (index > 0) && (index < count);
+        final int eob = litlens.getLast();
+        final int[] firstLitlenFreq = new int[litlenFreq.length];
+        final int[] firstDistFreq = new int[distFreq.length];
+        final ChunkedIntList.Builder firstLitlens = new ChunkedIntList.Builder(litlens);
+        final ChunkedIntList.Builder secondLitlens = new ChunkedIntList.Builder(litlens);
+        int firstDecodedLen = 0;
+
+        for (int i = 0; i < index; i++) {
+            final int litlenThis = firstLitlens.peek();
+            countLitLen(litlenThis, 1, firstLitlenFreq, firstDistFreq);
+            firstDecodedLen += LitLen.decodedLen(litlenThis);
+            firstLitlens.keep();
+            secondLitlens.skip();
+        }
+
+        while (firstLitlens.hasNext()) {
+            firstLitlens.skip();
+        }
+
+        firstLitlens.add(eob);
+        secondLitlens.keepRest();
+        firstLitlenFreq[Constants.LITLEN_EOB]++;
+        final int[] secondLitlenFreq = litlenFreq.clone();
+        final int[] secondDistFreq = distFreq.clone();
+
+        for (int i = 0; i < secondLitlenFreq.length; i++) {
+            secondLitlenFreq[i] -= firstLitlenFreq[i];
+        }
+
+        for (int i = 0; i < secondDistFreq.length; i++) {
+            secondDistFreq[i] -= firstDistFreq[i];
+        }
+
+        secondLitlenFreq[Constants.LITLEN_EOB]++;
+        final DeflateBlockHuffman first = (DeflateBlockHuffman) copy();
+        final DeflateBlockHuffman second = (DeflateBlockHuffman) copy();
+        first.setSplitPart(firstLitlens.build(), firstLitlenFreq, firstDistFreq, decodedData.slice(0, firstDecodedLen));
+        second.setSplitPart(secondLitlens.build(), secondLitlenFreq, secondDistFreq, decodedData.slice(firstDecodedLen, decodedData.length()));
+        first.setNext(second);
+        second.setPrevious(first);
+        first.recodeHuffman();
+        second.recodeHuffman();
+        return new DeflateBlockHuffman[] {first, second};
+    }
+
+    /** Replaces the literals / backrefs of a copy of this block with part of them, keeping the current Huffman codes, which can code every part */
+    private void setSplitPart(ChunkedIntList partLitlens, int[] partLitlenFreq, int[] partDistFreq, DecodedData partDecodedData) {
+        litlens = partLitlens;
+        litlenFreq = partLitlenFreq;
+        distFreq = partDistFreq;
+        decodedData = partDecodedData;
+        sizeBits -= litlenSizeBits;
+        litlenSizeBits = getLitLenSizeBits(litlenDec, distDec);
+        sizeBits += litlenSizeBits;
+    }
+
+    /** Returns the smaller of a block coded with the fixed Huffman codes, and a copy of it recoded with an optimal dynamic Huffman table */
+    private static DeflateBlockHuffman smallerOfFixedAndDynamic(DeflateBlockHuffman fixed) {
+        final DeflateBlockHuffman dynamic = (DeflateBlockHuffman) fixed.copy();
+        dynamic.recodeHuffman();
+        return dynamic.getSizeBits(0) < fixed.getSizeBits(0) ? dynamic : fixed;
+    }
+
+    /**
+     * Creates a Huffman block from literals / backrefs ending with an end of block symbol, and their decoded data,
+     * coded with whichever is smaller of the fixed Huffman codes and an optimal dynamic Huffman table.
+     */
+    static DeflateBlockHuffman ofLitlens(DeflateBlock prevBlock, ChunkedIntList litlens, DecodedData decodedData) {
+        final DeflateBlockHuffman block = new DeflateBlockHuffman(prevBlock, DeflateBlockType.FIXED);
+        block.litlens = litlens;
+        block.litlenFreq = new int[Constants.MAX_LITLEN_LENS];
+        block.distFreq = new int[Constants.MAX_DIST_LENS];
+        final PrimitiveIterator.OfInt iter = litlens.iterator();
+
+        while (iter.hasNext()) {
+            countLitLen(iter.nextInt(), 1, block.litlenFreq, block.distFreq);
+        }
+
+        block.decodedData = decodedData;
+        block.recodeToHuffmanInternal(Huffman.FIXED_LITLEN_INST, Huffman.FIXED_DIST_INST);
+        return smallerOfFixedAndDynamic(block);
+    }
+
     @Override
     public boolean canMerge(DeflateBlock append) {
         return (append != null) && ((append.getDeflateBlockType() == DeflateBlockType.FIXED) || (append.getDeflateBlockType() == DeflateBlockType.DYNAMIC));
     }
 
-    // TODO Merge dynamic blocks
+    /**
+     * Merges the literals / backrefs of both blocks into one block, coded with whichever is smaller of
+     * the fixed Huffman codes and an optimal dynamic Huffman table for the combined histograms.
+     */
     @Override
     public DeflateBlock merge(DeflateBlock append) {
         if ((append.getDeflateBlockType() == DeflateBlockType.FIXED) || (append.getDeflateBlockType() == DeflateBlockType.DYNAMIC)) {
-            DeflateBlockHuffman thisFixed;
-
-            if (getDeflateBlockType() == DeflateBlockType.DYNAMIC) {
-                thisFixed = (DeflateBlockHuffman) copy();
-                thisFixed.recodeToFixedHuffman();
-            } else {
-                thisFixed = this;
+            final DeflateBlockHuffman other = (DeflateBlockHuffman) append;
+            final DeflateBlockHuffman merged = (DeflateBlockHuffman) copy();
+            merged.decodedData = decodedData.append(other.decodedData);
+            final ChunkedIntList.Builder mergedLitlens = new ChunkedIntList.Builder(litlens);
+            mergedLitlens.keep(litlens.size() - 1);
+            mergedLitlens.skip();
+            mergedLitlens.addAll(other.litlens);
+            merged.litlens = mergedLitlens.build();
+            merged.litlenFreq = litlenFreq.clone();
+            merged.distFreq = distFreq.clone();
+            merged.litlenFreq[Constants.LITLEN_EOB]--;
+
+            for (int i = 0; i < merged.litlenFreq.length; i++) {
+                merged.litlenFreq[i] += other.litlenFreq[i];
             }
 
-            DeflateBlockHuffman otherFixed;
+            for (int i = 0; i < merged.distFreq.length; i++) {
+                merged.distFreq[i] += other.distFreq[i];
+            }
 
-            if (append.getDeflateBlockType() == DeflateBlockType.DYNAMIC) {
-                otherFixed = (DeflateBlockHuffman) append.copy();
-                otherFixed.recodeToFixedHuffman();
+            // The codes of this block might not have codes for every symbol of the appended block, so the merged block is recoded from the combined histograms
+            if (merged.type == DeflateBlockType.FIXED) {
+                merged.recodeToHuffmanInternal(Huffman.FIXED_LITLEN_INST, Huffman.FIXED_DIST_INST);
             } else {
-                otherFixed = (DeflateBlockHuffman) append;
+                merged.recodeToFixedHuffman();
             }
 
-            final DeflateBlockHuffman merged = (DeflateBlockHuffman) thisFixed.copy();
-            merged.decodedData = Util.combine(getUncompressedData(), append.getUncompressedData());
-            merged.ensureDidCopyLitLens();
-            final LitLen eob = merged.litlens.remove(merged.litlens.size() - 1);
-            merged.litlens.addAll(otherFixed.litlens);
-            merged.sizeBits -= merged.litlenSizeBits;
-            /*for (final LitLen litlenThis : otherFixed.litlens) {
-                merged.litlenSizeBits += getLitLenSize(litlenThis, merged.litlenDec, merged.distDec);
-            }*/
-            merged.litlenSizeBits += otherFixed.litlenSizeBits;
-            merged.litlenSizeBits -= getLitLenSize(eob, merged.litlenDec, merged.distDec);
-            merged.sizeBits += merged.litlenSizeBits;
-            merged.setNext(append.getNext());
-            return merged;
+            final DeflateBlockHuffman smallest = smallerOfFixedAndDynamic(merged);
+            smallest.setNext(append.getNext());
+            return smallest;
         }
 
         return null;
@@ -4,11 +4,9 @@ import java.io.IOException;
 
 import com.github.NeRdTheNed.deft4j.io.BitInputStream;
 import com.github.NeRdTheNed.deft4j.io.BitOutputStream;
-import com.github.NeRdTheNed.deft4j.util.BitInputStreamUtil;
-import com.github.NeRdTheNed.deft4j.util.Util;
 
 public class DeflateBlockUncompressed extends DeflateBlock {
-    private byte[] storedData;
+    private DecodedData storedData = DecodedData.EMPTY;
 
     public DeflateBlockUncompressed(DeflateBlock prevBlock) {
         super(prevBlock);
@@ -20,7 +18,7 @@ public class DeflateBlockUncompressed extends DeflateBlock {
     }
 
     @Override
-    public boolean parse(BitInputStream is) throws IOException {
+    boolean parse(BitInputStream is, DecodeWindow window) throws IOException {
         is.readToByteAligned();
         final long len;
         final long nlen;
@@ -31,7 +29,13 @@ public class DeflateBlockUncompressed extends DeflateBlock {
             return false;
         }
 
-        storedData = BitInputStreamUtil.readFromBIS(is, (int) len);
+        final int blockStart = window.size();
+
+        if (!window.read(is, (int) len)) {
+            return false;
+        }
+
+        storedData = window.viewFrom(blockStart);
         return true;
     }
 
@@ -40,7 +44,7 @@ public class DeflateBlockUncompressed extends DeflateBlock {
         final int finalBlockI = finalBlock ? 1 : 0;
         os.writeNBits(finalBlockI, 3);
         final byte[] lenNlen = new byte[4];
-        final int lenght = storedData != null ? storedData.length : 0;
+        final int lenght = storedData.length();
         lenNlen[0] = (byte)lenght;
         lenNlen[1] = (byte)(lenght >>> 8);
         lenNlen[2] = (byte) ~lenNlen[0];
@@ -48,29 +52,36 @@ public class DeflateBlockUncompressed extends DeflateBlock {
         os.flushToByteAligned();
         os.writeBytes(lenNlen);
 
-        if (storedData != null) {
-            os.writeBytes(storedData);
-        }
-
+        storedData.writeTo(os);
         return true;
     }
 
     @Override
-    public byte[] getUncompressedData() {
+    DecodedData getDecodedData() {
         return storedData;
     }
 
+    @Override
+    public byte[] getUncompressedData() {
+        return storedData.toArray();
+    }
+
     @Override
     public boolean fromUncompressed(byte[] input) {
-        storedData = input;
+        storedData = DecodedData.of(input);
         return true;
     }
 
+    /** Stores the given decoded data, without copying it */
+    void fromDecoded(DecodedData input) {
+        storedData = input;
+    }
+
     @Override
     public long getSizeBits(long alginment) {
         long contributedAlignment = alginment % 8;
         contributedAlignment = contributedAlignment == 0 ? 0 : 8 - contributedAlignment;
-        return (((long) (storedData != null ? storedData.length : 0) + 4) * 8) + contributedAlignment;
+        return (((long) storedData.length() + 4) * 8) + contributedAlignment;
     }
 
     @Override
@@ -92,13 +103,13 @@ public class DeflateBlockUncompressed extends DeflateBlock {
     @Override
     public void discard() {
         super.discard();
-        storedData = null;
+        storedData = DecodedData.EMPTY;
     }
 
     @Override
     public boolean canMerge(DeflateBlock append) {
         if (append != null) {
-            final long totalSize = getUncompressedData().length + append.getUncompressedData().length;
+            final long totalSize = storedData.length() + append.getDecodedData().length();
 
             if (totalSize <= 65535) {
                 return true;
@@ -112,7 +123,7 @@ public class DeflateBlockUncompressed extends DeflateBlock {
     public DeflateBlock merge(DeflateBlock append) {
         final DeflateBlockUncompressed merged = new DeflateBlockUncompressed(getPrevious());
         merged.setNext(append.getNext());
-        merged.fromUncompressed(Util.combine(getUncompressedData(), append.getUncompressedData()));
+        merged.fromDecoded(storedData.append(append.getDecodedData()));
         return merged;
     }
 
@@ -1,18 +1,20 @@
 package com.github.NeRdTheNed.deft4j.deflate;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import com.github.NeRdTheNed.deft4j.Deft;
 import com.github.NeRdTheNed.deft4j.io.BitInputStream;
 import com.github.NeRdTheNed.deft4j.io.BitOutputStream;
+import com.github.NeRdTheNed.deft4j.util.IntList;
 import com.github.NeRdTheNed.deft4j.util.Pair;
 
 public class DeflateStream {
@@ -60,22 +62,52 @@ public class DeflateStream {
 
     private DeflateBlock firstBlock;
 
-    private boolean parse(long dataLength, byte[] data, int offset) throws IOException {
-        final ByteArrayInputStream bais = new ByteArrayInputStream(data, offset, (int) dataLength);
-        return parse(bais);
+    private boolean parse(long dataLength, byte[] data, int offset, long sizeHint) throws IOException {
+        return parse(new BitInputStream(data, offset, (int) dataLength), sizeHint, dataLength);
     }
 
     public boolean parse(byte[] data) throws IOException {
-        return parse(data.length, data, 0);
+        return parse(data, 0L);
+    }
+
+    /**
+     * Parses the deflate stream, with the expected size of its uncompressed data as a hint,
+     * so the buffer for the uncompressed data can be allocated once. A hint of 0 or less means the size isn't known.
+     * The hint is only used for allocation, and is never trusted past the most data the compressed data could decode to,
+     * so streams are still parsed correctly if it's wrong, and a forged hint can't force a large allocation.
+     */
+    public boolean parse(byte[] data, long sizeHint) throws IOException {
+        return parse(data.length, data, 0, sizeHint);
     }
 
     public boolean parse(InputStream is) throws IOException {
+        return parse(is, 0L);
+    }
+
+    /**
+     * Parses the deflate stream from the InputStream, with the expected size of its uncompressed data as a hint, see {@link #parse(byte[], long)}.
+     * The compressed size is taken from {@link InputStream#available()}, which is exact for in-memory streams,
+     * so the hint isn't used for streams which can't report how much data is left.
+     */
+    public boolean parse(InputStream is, long sizeHint) throws IOException {
+        final long compressedSize = is.available();
         final BitInputStream bis = new BitInputStream(is);
+
+        try {
+            return parse(bis, sizeHint, compressedSize);
+        } finally {
+            // Leave the InputStream positioned directly after the deflate stream
+            bis.returnUnreadBytes();
+        }
+    }
+
+    private boolean parse(BitInputStream bis, long sizeHint, long compressedSize) throws IOException {
         long bits;
         boolean bfinal;
         DeflateBlock prevBlock = null;
         long pos = 0;
         boolean first = true;
+        final DecodeWindow window = new DecodeWindow(sizeHint, compressedSize);
 
         do {
             bits = bis.readBits(3);
@@ -105,7 +137,7 @@ public class DeflateStream {
                 return false;
             }
 
-            if (!newBlock.parse(bis)) {
+            if (!newBlock.parse(bis, window)) {
                 return false;
             }
 
@@ -141,6 +173,7 @@ public class DeflateStream {
         }
 
         bos.flushToByteAligned();
+        bos.flush();
         return true;
     }
 
@@ -157,15 +190,27 @@ public class DeflateStream {
     }
 
     public byte[] getUncompressedData() throws IOException {
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DeflateBlock currentBlock = firstBlock;
+        return collectUncompressedData();
+    }
 
-        while (currentBlock != null) {
-            baos.write(currentBlock.getUncompressedData());
-            currentBlock = currentBlock.getNext();
+    /** Copies the decoded data of every block straight from the decoded data of the stream into one array of the total size */
+    private byte[] collectUncompressedData() {
+        int length = 0;
+
+        for (DeflateBlock currentBlock = firstBlock; currentBlock != null; currentBlock = currentBlock.getNext()) {
+            length += currentBlock.getDecodedData().length();
         }
 
-        return baos.toByteArray();
+        final byte[] data = new byte[length];
+        int pos = 0;
+
+        for (DeflateBlock currentBlock = firstBlock; currentBlock != null; currentBlock = currentBlock.getNext()) {
+            final DecodedData blockData = currentBlock.getDecodedData();
+            blockData.copyTo(data, pos);
+            pos += blockData.length();
+        }
+
+        return data;
     }
 
     public long getSizeBits() {
@@ -181,22 +226,6 @@ public class DeflateStream {
         return size;
     }
 
-    private static DeflateBlockHuffman optimiseBlockDynBlock(DeflateBlockHuffman block, boolean ohh, boolean use8, boolean use7, boolean alt8, boolean noRep, boolean noZRep, boolean noZRep2, boolean prune, boolean noRepZeros) {
-        if (block.getDeflateBlockType() != DeflateBlockType.DYNAMIC) {
-            return null;
-        }
-
-        final DeflateBlockHuffman optimised = (DeflateBlockHuffman) block.copy();
-        optimised.rewriteHeader(ohh, use8, use7, alt8, noRep, noZRep, noZRep2, noRepZeros);
-
-        if (prune) {
-            optimised.recodeHeaderToLessRLEMatches();
-        }
-
-        optimised.optimiseHeader();
-        return optimised;
-    }
-
     private static DeflateBlockHuffman recodedHuffman(DeflateBlockHuffman block, boolean prune) {
         final DeflateBlockHuffman recoded = (DeflateBlockHuffman) block.copy();
 
@@ -228,6 +257,57 @@ public class DeflateStream {
         return block;
     }
 
+    /**
+     * Gives each backref the distance which is cheapest to code with the block's Huffman codes, then recodes the Huffman codes for the new distances,
+     * repeating while the block gets smaller. Returns the original block if no distance was changed.
+     */
+    private static DeflateBlockHuffman reselectedDistances(DeflateBlockHuffman block, long align) {
+        final DistanceIndex index = new DistanceIndex(block);
+        DeflateBlockHuffman best = block;
+
+        while (true) {
+            final DeflateBlockHuffman check = (DeflateBlockHuffman) best.copy();
+
+            if (check.reselectDistances(index) <= 0) {
+                break;
+            }
+
+            final DeflateBlockHuffman recoded = recodedHuffman(check, false);
+            final DeflateBlockHuffman smaller = recoded.getSizeBits(align) < check.getSizeBits(align) ? recoded : check;
+
+            if (smaller.getSizeBits(align) >= best.getSizeBits(align)) {
+                break;
+            }
+
+            best = smaller;
+        }
+
+        return best;
+    }
+
+    /**
+     * Re-decides the literals / backrefs of the block with the sizes of its Huffman codes, then recodes the Huffman codes for the new literals / backrefs,
+     * repeating while the block gets smaller. The block is compared with its recoded Huffman codes, so a better header of the original block doesn't stop the repetition.
+     * Returns the original block if re-deciding the literals / backrefs didn't make the recoded block smaller.
+     */
+    private static DeflateBlockHuffman squeezed(DeflateBlockHuffman block, long align) {
+        final DeflateBlockHuffman recoded = recodedHuffman(block, false);
+        DeflateBlockHuffman best = recoded;
+
+        while (true) {
+            final DeflateBlockHuffman check = (DeflateBlockHuffman) best.copy();
+            check.squeeze();
+
+            if (check.getSizeBits(align) >= best.getSizeBits(align)) {
+                break;
+            }
+
+            best = check;
+        }
+
+        return best != recoded ? best : block;
+    }
+
     private static DeflateBlockHuffman leastExpPruned(DeflateBlockHuffman block) {
         final DeflateBlockHuffman recoded = (DeflateBlockHuffman) block.copy();
         recoded.removeDistLitLeastExpensive(0);
@@ -240,11 +320,6 @@ public class DeflateStream {
         return recoded;
     }
 
-    private static final boolean TRY_ALT_8 = false;
-
-    private static final boolean DEFAULT_8 = false;
-    private static final boolean ALT_8 = !DEFAULT_8;
-
     private static DeflateBlockHuffman optimiseBlockCopyHelper(DeflateBlockHuffman block) {
         final DeflateBlockHuffman optimised = (DeflateBlockHuffman) block.copy();
         optimised.optimise();
@@ -256,64 +331,36 @@ public class DeflateStream {
         return block;
     }
 
-    private static final boolean[] TRUE_FALSE = {true, false};
-    private static final boolean[] FALSE_TRUE = {false, true};
-    private static final boolean[] FALSE = {false};
-    private static final boolean[] TRUE = {true};
-    private static final boolean[] ALT_8_ARR = TRY_ALT_8 ? new boolean[] {DEFAULT_8, ALT_8} : new boolean[] {DEFAULT_8};
-
-    private static void addOptimisedRecoded(Consumer<? super Pair<? extends DeflateBlockHuffman, String>> callback, DeflateBlockHuffman toOptimise, String baseName, long position) {
-        final Map<DeflateBlockHuffman, String> blocks = new LinkedHashMap<>();
-        blocks.put(optimiseBlockCopyHelper(toOptimise), baseName);
-        blocks.put(optimiseBlockHelper(recodedHuffman(toOptimise, false)), baseName + "huffman-recoded ");
-        final DeflateBlockHuffman pruned = recodedHuffman(toOptimise, true);
-        blocks.put(optimiseBlockCopyHelper(pruned), baseName + "huffman-recoded-pruned ");
-        final DeflateBlockHuffman prunedFull = recodedHuffmanFull(pruned, position);
-
-        if (prunedFull != pruned) {
-            blocks.put(optimiseBlockHelper(prunedFull), baseName + "huffman-recoded-pruned-full ");
-        }
-
-        for (final Entry<DeflateBlockHuffman, String> entry : blocks.entrySet()) {
-            final DeflateBlockHuffman block = entry.getKey();
-            final String name = entry.getValue();
-
-            for (final boolean noRepZeros : FALSE_TRUE) {
-                for (final boolean prune : FALSE_TRUE) {
-                    for (final boolean noRep : noRepZeros ? FALSE : FALSE_TRUE) {
-                        for (final boolean noZRep : noRepZeros ? TRUE : FALSE_TRUE) {
-                            for (final boolean noZRep2 : FALSE_TRUE) {
-                                for (final boolean ohh : TRUE_FALSE) {
-                                    if (ohh) {
-                                        if (noRep) {
-                                            continue;
-                                        }
-
-                                        for (final boolean alt8 : ALT_8_ARR) {
-                                            for (final boolean use8 : TRUE_FALSE) {
-                                                for (final boolean use7 : TRUE_FALSE) {
-                                                    if (!use8 && (alt8 || !use7)) {
-                                                        continue;
-                                                    }
-
-                                                    final String newName = name + "optimised-recoded ohh" + (noZRep ? " no-zrep" : "") + (noZRep2 ? " no-zrep2" : "") + (use8 ? alt8 ? " alt-optimise-8" : " optimise-8" : "") + (use7 ? " optimise-7" : "") + (prune ? " rle-pruned" : "") + (noRepZeros ? " no-rep-zeros " : "");
-                                                    final DeflateBlockHuffman opt = optimiseBlockDynBlock(block, true, use8, use7, alt8, false, noZRep, noZRep2, prune, noRepZeros);
-                                                    callback.accept(new Pair<>(opt, newName));
-                                                }
-                                            }
-                                        }
-                                    } else {
-                                        final String newName = name + "optimised-recoded" + (noRep ? " no-rep" : "") + (noZRep ? " no-zrep" : "") + (noZRep2 ? " no-zrep2" : "") + (prune ? " rle-pruned" : "") + (noRepZeros ? " no-rep-zeros " : "");
-                                        final DeflateBlockHuffman opt = optimiseBlockDynBlock(block, false, false, false, false, noRep, noZRep, noZRep2, prune, noRepZeros);
-                                        callback.accept(new Pair<>(opt, newName));
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+    private static void addOptimisedRecodedHeaders(CandidateSearch.Context context, HeaderCache headers, DeflateBlockHuffman block, CandidateName name) {
+        // Every rewritten header encodes the same codelens, so none of them can be smaller than the lower bound
+        if (context.prune(block.getSizeBitsLowerBound(), 1)) {
+            return;
         }
+
+        final Pair<String, DeflateBlockHuffman.DynamicHeader> header = headers.getHeader(block);
+
+        if ((header != null) && !context.prune(block.getSizeBits(header.v), 1)) {
+            final DeflateBlockHuffman opt = (DeflateBlockHuffman) block.copy();
+            opt.setDynamicHeader(header.v);
+            context.offer(opt, name.then(header.k));
+        }
+    }
+
+    private static void addOptimisedRecoded(CandidateSearch.Context context, HeaderCache headers, DeflateBlockHuffman toOptimise, CandidateName baseName, long position) {
+        context.fork(baseName, c -> addOptimisedRecodedHeaders(c, headers, optimiseBlockCopyHelper(toOptimise), baseName));
+        final CandidateName recodedName = baseName.then("huffman-recoded");
+        context.fork(recodedName, c -> addOptimisedRecodedHeaders(c, headers, optimiseBlockHelper(recodedHuffman(toOptimise, false)), recodedName));
+        context.fork(baseName, c -> {
+            final DeflateBlockHuffman pruned = recodedHuffman(toOptimise, true);
+            final CandidateName prunedName = baseName.then("huffman-recoded-pruned");
+            c.fork(prunedName, cPruned -> addOptimisedRecodedHeaders(cPruned, headers, optimiseBlockCopyHelper(pruned), prunedName));
+            final DeflateBlockHuffman prunedFull = recodedHuffmanFull(pruned, position);
+
+            if (prunedFull != pruned) {
+                final CandidateName prunedFullName = baseName.then("huffman-recoded-pruned-full");
+                c.fork(prunedFullName, cPrunedFull -> addOptimisedRecodedHeaders(cPrunedFull, headers, optimiseBlockHelper(prunedFull), prunedFullName));
+            }
+        });
     }
 
     private static DeflateBlock optimiseBlockNormal(DeflateBlock block) {
@@ -340,165 +387,284 @@ public class DeflateStream {
     private static final boolean PRINT_OPT_FINE = Deft.PRINT_OPT_FINE;
     private static final boolean PRINT_OPT_FINER = Deft.PRINT_OPT_FINER;
 
-    private static DeflateBlock optimiseBlock(DeflateBlock toOptimise, long position) {
-        if (PRINT_OPT_FINER) {
-            System.out.println("Optimising block " + toOptimise);
+    /** Tries optimisations on the block's header, with the block's current Huffman codes */
+    private static void addOptimisedHeaders(CandidateSearch.Context context, HeaderCache headers, DeflateBlockHuffman block, CandidateName name, long position) {
+        // Fixed huffman block
+        /*final String name = toFixed.v + " fixed-huffman";
+        final DeflateBlockHuffman fixed = toFixedHuffman(toFixed.k);
+        fixed.optimise();
+        callback.accept(new Pair<>(fixed, name));*/
+
+        // Post recoded header
+        final CandidateName namePost = name.then("post-recoded");
+        context.fork(namePost, c -> {
+            final DeflateBlockHuffman post = (DeflateBlockHuffman) block.copy();
+            post.recodeHeader();
+            c.offer(post, namePost);
+            final DeflateBlock postOpt = optimiseBlockNormal(post);
+
+            if (postOpt != null) {
+                c.offer(postOpt, namePost.then("optimised"));
+            }
+
+            addOptimisedRecoded(c, headers, post, namePost, position);
+        });
+
+        if (!context.hasEffort(OptimiseOptions.Effort.HIGH)) {
+            return;
         }
 
-        final Pair<DeflateBlock, Long> currentSmallestPair = new Pair<>(toOptimise, toOptimise.getSizeBits(position));
-        final Consumer<Pair<? extends DeflateBlock, String>> callback = e -> {
-            if (PRINT_OPT_FINER) {
-                System.out.println("Trying " + e.v);
+        // RLE pruned header
+        final CandidateName namePrune = name.then("pruned");
+        context.fork(namePrune, c -> {
+            final DeflateBlockHuffman prune = (DeflateBlockHuffman) block.copy();
+            prune.recodeHeaderToLessRLEMatches();
+            c.offer(prune, namePrune);
+            final DeflateBlock pruneOpt = optimiseBlockNormal(prune);
+
+            if (pruneOpt != null) {
+                c.offer(pruneOpt, namePrune.then("optimised"));
             }
 
-            final DeflateBlock candidate = e.k;
-            final long newSizeBits = candidate.getSizeBits(position);
+            addOptimisedRecoded(c, headers, prune, namePrune, position);
+        });
 
-            if (newSizeBits < currentSmallestPair.v) {
-                if (PRINT_OPT_FINE) {
-                    System.out.println("Candidate " + e.v + " saved " + (currentSmallestPair.v - newSizeBits) + " bits");
-                }
+        // Least-expensive dist litlen pruned
+        final CandidateName nameLeastExp = name.then("least-exp");
+        context.fork(nameLeastExp, c -> addOptimisedRecoded(c, headers, leastExpPruned(block), nameLeastExp, position));
+        /*addOptimisedRecoded(callback::accept, leastExpPruned(post), namePost + "-least-exp ", position);
+        addOptimisedRecoded(callback::accept, leastExpPruned(prune), namePrune + "-least-exp ", position);*/
+
+        // Least-seen dist litlen pruned
+        final CandidateName nameLeastSeen = name.then("least-seen");
+        context.fork(nameLeastSeen, c -> addOptimisedRecoded(c, headers, leastSeenPruned(block), nameLeastSeen, position));
+        /*addOptimisedRecoded(callback::accept, leastSeenPruned(post), namePost + "-least-seen ", position);
+        addOptimisedRecoded(callback::accept, leastSeenPruned(prune), namePrune + "-least-seen ", position);*/
+    }
 
-                /*if (currentSmallestPair.k != toOptimise) {
-                    currentSmallestPair.k.discard();
-                }*/
-                currentSmallestPair.k = candidate;
-                currentSmallestPair.v = newSizeBits;
+    /** Tries the block, and optimisations on the block with its current and recoded Huffman codes */
+    private static void addOptimisedHuffman(CandidateSearch.Context context, HeaderCache headers, DeflateBlockHuffman block, CandidateName name, long position) {
+        context.offer(block, name);
+        addOptimisedHeaders(context, headers, block, name, position);
+
+        final CandidateName huffRecName = name.then("huffman-recoded");
+        context.fork(huffRecName, c -> {
+            final DeflateBlockHuffman huffRec = recodedHuffman(block, false);
+            c.offer(huffRec, huffRecName);
+            addOptimisedHeaders(c, headers, huffRec, huffRecName, position);
+        });
+
+        final CandidateName prunedName = name.then("huffman-recoded-pruned");
+        context.fork(prunedName, c -> {
+            final DeflateBlockHuffman pruned = recodedHuffman(block, true);
+            c.offer(pruned, prunedName);
+            addOptimisedHeaders(c, headers, pruned, prunedName, position);
+
+            final DeflateBlockHuffman prunedFull = recodedHuffmanFull(pruned, position);
+
+            if (prunedFull != pruned) {
+                final CandidateName prunedFullName = name.then("huffman-recoded-pruned-full");
+                c.offer(prunedFull, prunedFullName);
+                addOptimisedHeaders(c, headers, prunedFull, prunedFullName, position);
             }
-        };
-        // Standard
-        final DeflateBlock optimised = optimiseBlockNormal(toOptimise);
+        });
+    }
+
+    /** Searches the block and uses the result, so the search is added to the statistics */
+    private static DeflateBlock optimiseBlock(DeflateBlock toOptimise, long position, OptimiseOptions.Effort effort, OptimiseOptions.Budget budget) {
+        final CandidateSearch search = searchBlock(toOptimise, position, effort, budget);
+        search.recordStats(position);
+        return search.getBest(position);
+    }
 
-        if (optimised != null) {
-            callback.accept(new Pair<>(optimised, "optimised"));
+    /**
+     * Searches for smaller versions of the block. Candidates are tried in order of how often they're expected to be smaller,
+     * and each effort level adds the next families of candidates in this order.
+     */
+    private static CandidateSearch searchBlock(DeflateBlock toOptimise, long position, OptimiseOptions.Effort effort, OptimiseOptions.Budget budget) {
+        if (PRINT_OPT_FINER) {
+            System.out.println("Optimising block " + toOptimise);
         }
 
-        if (toOptimise.getDeflateBlockType() != DeflateBlockType.STORED) {
-            // Uncompressed
-            final DeflateBlockUncompressed stored = toOptimise.asUncompressed();
+        final HeaderCache headers = new HeaderCache(effort == OptimiseOptions.Effort.EXHAUSTIVE);
+        return new CandidateSearch(toOptimise, position, effort, budget).search(context -> {
+            // Standard
+            final DeflateBlock optimised = optimiseBlockNormal(toOptimise);
 
-            if (stored.getUncompressedData().length <= 65535) {
-                callback.accept(new Pair<>(stored, "uncompressed"));
+            if (optimised != null) {
+                context.offer(optimised, CandidateName.ROOT.then("optimised"));
             }
-        }
 
-        DeflateBlockHuffman toOptimiseHuffman = null;
-        DeflateBlockHuffman optimisedHuffman = null;
-        final boolean isOrigDyn = toOptimise.getDeflateBlockType() == DeflateBlockType.DYNAMIC;
-        final boolean isOrigFixed = toOptimise.getDeflateBlockType() == DeflateBlockType.FIXED;
+            if (toOptimise.getDeflateBlockType() != DeflateBlockType.STORED) {
+                // Uncompressed
+                final DeflateBlockUncompressed stored = toOptimise.asUncompressed();
 
-        if (isOrigDyn) {
-            toOptimiseHuffman = (DeflateBlockHuffman) toOptimise;
-            optimisedHuffman = (DeflateBlockHuffman) optimised;
-        } else if (isOrigFixed) {
-            toOptimiseHuffman = (DeflateBlockHuffman) toOptimise.copy();
-            toOptimiseHuffman.recodeHuffman();
-            optimisedHuffman = (DeflateBlockHuffman) optimiseBlockNormal(toOptimiseHuffman);
-        }
+                if (stored.getDecodedData().length() <= 65535) {
+                    context.offer(stored, CandidateName.ROOT.then("uncompressed"));
+                }
+            }
+
+            DeflateBlockHuffman toOptimiseHuffman = null;
+            DeflateBlockHuffman optimisedHuffman = null;
+            final boolean isOrigDyn = toOptimise.getDeflateBlockType() == DeflateBlockType.DYNAMIC;
+            final boolean isOrigFixed = toOptimise.getDeflateBlockType() == DeflateBlockType.FIXED;
+
+            if (isOrigDyn) {
+                toOptimiseHuffman = (DeflateBlockHuffman) toOptimise;
+                optimisedHuffman = (DeflateBlockHuffman) optimised;
+            } else if (isOrigFixed) {
+                toOptimiseHuffman = (DeflateBlockHuffman) toOptimise.copy();
+                toOptimiseHuffman.recodeHuffman();
+                optimisedHuffman = (DeflateBlockHuffman) optimiseBlockNormal(toOptimiseHuffman);
+            }
 
-        if (toOptimiseHuffman != null) {
-            final Consumer<Pair<? extends DeflateBlockHuffman, String>> runOptimisationsCallback = toFixed -> {
-                // Fixed huffman block
-                /*final String name = toFixed.v + " fixed-huffman";
-                final DeflateBlockHuffman fixed = toFixedHuffman(toFixed.k);
-                fixed.optimise();
-                callback.accept(new Pair<>(fixed, name));*/
+            if (toOptimiseHuffman != null) {
+                if (!isOrigFixed) {
+                    // Fixed huffman block
+                    final DeflateBlockHuffman fixed = toFixedHuffman(toOptimiseHuffman);
 
-                // Post recoded header
-                final String namePost = toFixed.v + " post-recoded";
-                final DeflateBlockHuffman post = (DeflateBlockHuffman) toFixed.k.copy();
-                post.recodeHeader();
-                callback.accept(new Pair<>(post, namePost));
-                final DeflateBlock postOpt = optimiseBlockNormal(post);
+                    if (fixed != null) {
+                        fixed.optimise();
+                        context.offer(fixed, CandidateName.ROOT.then("default").then("fixed-huffman"));
+                    }
+                }
 
-                if (postOpt != null) {
-                    callback.accept(new Pair<>(postOpt, namePost + " optimised"));
+                if (!context.hasEffort(OptimiseOptions.Effort.NORMAL)) {
+                    return;
                 }
 
-                addOptimisedRecoded(callback, post, namePost + " ", position);
+                final DeflateBlockHuffman defaultHuffman = toOptimiseHuffman;
+                final CandidateName defaultName = CandidateName.ROOT.then("default");
+                context.fork(defaultName, c -> addOptimisedHuffman(c, headers, defaultHuffman, defaultName, position));
+                final CandidateName distancesName = CandidateName.ROOT.then("distances-reselected");
+                context.fork(distancesName, c -> {
+                    final DeflateBlockHuffman reselected = reselectedDistances(defaultHuffman, position);
 
-                // RLE pruned header
-                final String namePrune = toFixed.v + " pruned";
-                final DeflateBlockHuffman prune = (DeflateBlockHuffman) toFixed.k.copy();
-                prune.recodeHeaderToLessRLEMatches();
-                callback.accept(new Pair<>(prune, namePrune));
-                final DeflateBlock pruneOpt = optimiseBlockNormal(prune);
+                    if (reselected != defaultHuffman) {
+                        c.offer(reselected, distancesName);
+                        addOptimisedHeaders(c, headers, reselected, distancesName, position);
+                    }
+                });
 
-                if (pruneOpt != null) {
-                    callback.accept(new Pair<>(pruneOpt, namePrune + " optimised"));
+                if (!context.hasEffort(OptimiseOptions.Effort.HIGH)) {
+                    return;
                 }
 
-                addOptimisedRecoded(callback, prune, namePrune + " ", position);
-
-                // Least-expensive dist litlen pruned
-                addOptimisedRecoded(callback, leastExpPruned(toFixed.k), toFixed.v + "-least-exp ", position);
-                /*addOptimisedRecoded(callback::accept, leastExpPruned(post), namePost + "-least-exp ", position);
-                addOptimisedRecoded(callback::accept, leastExpPruned(prune), namePrune + "-least-exp ", position);*/
-
-                // Least-seen dist litlen pruned
-                addOptimisedRecoded(callback, leastSeenPruned(toFixed.k), toFixed.v + "-least-seen ", position);
-                /*addOptimisedRecoded(callback::accept, leastSeenPruned(post), namePost + "-least-seen ", position);
-                addOptimisedRecoded(callback::accept, leastSeenPruned(prune), namePrune + "-least-seen ", position);*/
-            };
-            final Consumer<Pair<? extends DeflateBlockHuffman, String>> runOptimisationsCallbackMulti = e -> {
-                callback.accept(e);
-                runOptimisationsCallback.accept(e);
-
-                final Pair<DeflateBlockHuffman, String> huffRec = new Pair<>(recodedHuffman(e.k, false), e.v + " huffman-recoded");
-                callback.accept(huffRec);
-                runOptimisationsCallback.accept(huffRec);
-
-                final DeflateBlockHuffman pruned = recodedHuffman(e.k, true);
-                final Pair<DeflateBlockHuffman, String> huffRecPruned = new Pair<>(pruned, e.v + " huffman-recoded-pruned");
-                callback.accept(huffRecPruned);
-                runOptimisationsCallback.accept(huffRecPruned);
-
-                final DeflateBlockHuffman prunedFull = recodedHuffmanFull(pruned, position);
-
-                if (prunedFull != pruned) {
-                    final Pair<DeflateBlockHuffman, String> huffRecPrunedFull = new Pair<>(prunedFull, e.v + " huffman-recoded-pruned-full");
-                    callback.accept(huffRecPrunedFull);
-                    runOptimisationsCallback.accept(huffRecPrunedFull);
+                final CandidateName squeezedName = CandidateName.ROOT.then("squeezed");
+                context.fork(squeezedName, c -> {
+                    final DeflateBlockHuffman squeezed = squeezed(defaultHuffman, position);
+
+                    if (squeezed != defaultHuffman) {
+                        c.offer(squeezed, squeezedName);
+                        addOptimisedHeaders(c, headers, squeezed, squeezedName, position);
+                    }
+                });
+
+                if (optimisedHuffman != null) {
+                    final DeflateBlockHuffman optimisedDefaultHuffman = optimisedHuffman;
+                    final CandidateName optimisedName = CandidateName.ROOT.then("optimised");
+                    context.fork(optimisedName, c -> addOptimisedHuffman(c, headers, optimisedDefaultHuffman, optimisedName, position));
+                }
+
+                /*addOptimisedRecoded(runOptimisationsCallbackMulti, toOptimiseHuffman, "default ", position);
+                addOptimisedRecoded(runOptimisationsCallbackMulti, leastExpPruned(toOptimiseHuffman), "default-least-exp ", position);
+                addOptimisedRecoded(runOptimisationsCallbackMulti, leastSeenPruned(toOptimiseHuffman), "default-least-seen ", position);
+                //addOptimisedRecoded(callback::accept, leastPruned(toOptimiseHuffman), "default-least ");*/
+                //runOptimisationsCallbackMulti.accept(new Pair<>(toOptimiseHuffman, "default"));
+                if (!context.hasEffort(OptimiseOptions.Effort.EXHAUSTIVE)) {
+                    return;
                 }
-            };
-            runOptimisationsCallbackMulti.accept(new Pair<>(toOptimiseHuffman, "default"));
 
-            if (optimisedHuffman != null) {
-                runOptimisationsCallbackMulti.accept(new Pair<>(optimisedHuffman, "optimised"));
+                final CandidateName leastExpName = CandidateName.ROOT.then("default-least-exp");
+                context.fork(leastExpName, c -> addOptimisedHuffman(c, headers, leastExpPruned(defaultHuffman), leastExpName, position));
+                final CandidateName leastSeenName = CandidateName.ROOT.then("default-least-seen");
+                context.fork(leastSeenName, c -> addOptimisedHuffman(c, headers, leastSeenPruned(defaultHuffman), leastSeenName, position));
             }
+        });
+    }
+
+    public long optimise() {
+        return optimise(OptimiseOptions.DEFAULT);
+    }
 
-            if (!isOrigFixed) {
-                // Fixed huffman block
-                final DeflateBlockHuffman fixed = toFixedHuffman(toOptimiseHuffman);
+    public long optimise(boolean mergeBlocks) {
+        return optimise(OptimiseOptions.DEFAULT.withMergeBlocks(mergeBlocks));
+    }
 
-                if (fixed != null) {
-                    fixed.optimise();
-                    callback.accept(new Pair<>(fixed, "default fixed-huffman"));
-                }
+    public long optimise(OptimiseOptions options) {
+        return optimise(options, options.startBudget());
+    }
+
+    /** Runs every pass of optimisations on a block at the given alignment, and returns the search of each pass */
+    private static List<Pair<DeflateBlock, CandidateSearch>> speculateBlock(DeflateBlock block, long position, OptimiseOptions.Effort effort, OptimiseOptions.Budget budget) {
+        final List<Pair<DeflateBlock, CandidateSearch>> passes = new ArrayList<>();
+        DeflateBlock currentBlock = block;
+
+        while (true) {
+            final CandidateSearch search = searchBlock(currentBlock, position, effort, budget);
+            passes.add(new Pair<>(currentBlock, search));
+            final DeflateBlock optimisedBlock = search.getBest(position);
+
+            if ((optimisedBlock == currentBlock) || (optimisedBlock.getSizeBits(position) >= currentBlock.getSizeBits(position))) {
+                return passes;
             }
 
-            /*addOptimisedRecoded(runOptimisationsCallbackMulti, toOptimiseHuffman, "default ", position);
-            addOptimisedRecoded(runOptimisationsCallbackMulti, leastExpPruned(toOptimiseHuffman), "default-least-exp ", position);
-            addOptimisedRecoded(runOptimisationsCallbackMulti, leastSeenPruned(toOptimiseHuffman), "default-least-seen ", position);
-            //addOptimisedRecoded(callback::accept, leastPruned(toOptimiseHuffman), "default-least ");*/
-            //runOptimisationsCallbackMulti.accept(new Pair<>(toOptimiseHuffman, "default"));
-            runOptimisationsCallbackMulti.accept(new Pair<>(leastExpPruned(toOptimiseHuffman), "default-least-exp"));
-            runOptimisationsCallbackMulti.accept(new Pair<>(leastSeenPruned(toOptimiseHuffman), "default-least-seen"));
+            currentBlock = optimisedBlock;
         }
-
-        return currentSmallestPair.k;
     }
 
-    public long optimise() {
-        return optimise(true);
+    /**
+     * Optimises every non-empty block in parallel, assuming each block stays at its current alignment.
+     * Only the size of stored blocks depends on alignment, so each search can pick its best candidate again once the real alignment is known.
+     */
+    private Map<DeflateBlock, CandidateSearch> speculateBlocks(OptimiseOptions.Effort effort, OptimiseOptions.Budget budget) {
+        final List<Pair<DeflateBlock, Long>> blocks = new ArrayList<>();
+        long pos = 0;
+        DeflateBlock currentBlock = firstBlock;
+
+        while (currentBlock != null) {
+            pos += 3;
+
+            if (currentBlock.getDecodedData().length() > 0) {
+                blocks.add(new Pair<>(currentBlock, pos));
+            }
+
+            pos += currentBlock.getSizeBits(pos);
+            currentBlock = currentBlock.getNext();
+        }
+
+        final Map<DeflateBlock, CandidateSearch> searches = new IdentityHashMap<>();
+
+        if (blocks.size() > 1) {
+            final List<List<Pair<DeflateBlock, CandidateSearch>>> speculated = blocks.parallelStream().map(e -> speculateBlock(e.k, e.v, effort, budget)).collect(Collectors.toList());
+
+            for (final List<Pair<DeflateBlock, CandidateSearch>> passes : speculated) {
+                for (final Pair<DeflateBlock, CandidateSearch> pass : passes) {
+                    searches.put(pass.k, pass.v);
+                }
+            }
+        }
+
+        return searches;
     }
 
-    public long optimise(boolean mergeBlocks) {
+    /**
+     * Optimises the stream, stopping when the budget runs out. The budget can be shared with other streams.
+     * Steps of the search are skipped and ordered by the statistics as they were when the stream started being optimised.
+     */
+    public long optimise(OptimiseOptions options, OptimiseOptions.Budget sharedBudget) {
+        final OptimiseOptions.Budget budget = sharedBudget.withSnapshot();
         int block = 0;
         int pass = 0;
         long pos = 0;
         long saved = 0;
         boolean first = true;
+
+        if (options.getEffort() == OptimiseOptions.Effort.EXHAUSTIVE) {
+            saved += reparse(budget);
+        }
+
+        final Map<DeflateBlock, CandidateSearch> searches = speculateBlocks(options.getEffort(), budget);
         DeflateBlock currentBlock = firstBlock;
 
         while (currentBlock != null) {
@@ -506,9 +672,21 @@ public class DeflateStream {
             boolean didRemove = false;
 
             // Optimise block if it's not empty, or it's the only block in a stream
-            if ((currentBlock.getUncompressedData().length > 0) || (first && (currentBlock.getNext() == null))) {
+            if ((currentBlock.getDecodedData().length() > 0) || (first && (currentBlock.getNext() == null))) {
                 pos += 3;
-                final DeflateBlock optimisedBlock = optimiseBlock(currentBlock, pos);
+                // Pick the best candidate of the speculative search at the real alignment, if the block was searched
+                final CandidateSearch search = searches.remove(currentBlock);
+                final DeflateBlock optimisedBlock;
+
+                if (search != null) {
+                    search.recordStats(pos);
+                    optimisedBlock = search.getBest(pos);
+                } else if (!budget.isExhausted()) {
+                    optimisedBlock = optimiseBlock(currentBlock, pos, options.getEffort(), budget);
+                } else {
+                    optimisedBlock = currentBlock;
+                }
+
                 final long currentSaved = currentBlock.getSizeBits(pos) - optimisedBlock.getSizeBits(pos);
 
                 if ((optimisedBlock != currentBlock) && (currentSaved > 0)) {
@@ -520,6 +698,9 @@ public class DeflateStream {
                         System.out.println("Pass " + pass + " saved " + currentSaved + " bits in block " + block);
                     }
 
+                    // Speculative candidates may still link to the blocks which were there when they were created
+                    optimisedBlock.setPrevious(currentBlock.getPrevious());
+                    optimisedBlock.setNext(currentBlock.getNext());
                     currentBlock.replace(optimisedBlock);
                     currentBlock.discard();
                     currentBlock = optimisedBlock;
@@ -562,62 +743,304 @@ public class DeflateStream {
         // TODO Try other types of blocks
         // TODO Try merging more block types
         // TODO Try merging blocks at different passes
-        return mergeBlocks ? saved + mergeBlocks() : saved;
+        if (!options.isMergeBlocks()) {
+            return options.getEffort().compareTo(OptimiseOptions.Effort.NORMAL) >= 0 ? saved + splitAndShift(options, budget) : saved;
+        }
+
+        saved += mergeBlocks(options, budget);
+
+        // Blocks are merged before splitting, so splits are only kept if they're smaller than the merged blocks,
+        // and the blocks created by splitting are merged again where that's smaller
+        if ((options.getEffort().compareTo(OptimiseOptions.Effort.NORMAL) >= 0) && !budget.isExhausted()) {
+            final long splitSaved = splitAndShift(options, budget);
+
+            if (splitSaved > 0) {
+                saved += splitSaved + mergeBlocks(options, budget);
+            }
+        }
+
+        return saved;
     }
 
-    public long mergeBlocks() {
-        int block = 0;
-        int pass = 0;
-        long pos = 0;
+    /** Moves block boundaries and splits blocks, then moves the boundaries between the new blocks */
+    private long splitAndShift(OptimiseOptions options, OptimiseOptions.Budget budget) {
+        long saved = shiftBlockBoundaries(options, budget);
+        final long splitSaved = splitBlocks(options, budget);
+
+        // Boundaries between the new blocks are only estimated, so they can often be moved
+        if (splitSaved > 0) {
+            saved += splitSaved + shiftBlockBoundaries(options, budget);
+        }
+
+        return saved;
+    }
+
+    private static boolean isHuffman(DeflateBlock block) {
+        return (block.getDeflateBlockType() == DeflateBlockType.FIXED) || (block.getDeflateBlockType() == DeflateBlockType.DYNAMIC);
+    }
+
+    /**
+     * Replaces each block with a new parse of its uncompressed data by {@link OptimalParser} if it's smaller, stopping when the budget runs out.
+     * Symbol costs for each block start from the histograms of its current parse. New blocks aren't searched for candidates,
+     * but are compared with the current blocks using the smaller of the fixed Huffman codes and an optimal dynamic Huffman table.
+     * Each reparsed block uses a candidate from the budget, so a limit on candidates also limits reparsing.
+     */
+    public long reparse(OptimiseOptions.Budget budget) {
+        if (budget.isExhausted()) {
+            return 0;
+        }
+
+        final byte[] data = collectUncompressedData();
+        final OptimalParser parser = new OptimalParser(data);
         long saved = 0;
-        boolean first = true;
+        long pos = 0;
+        int block = 0;
+        int offset = 0;
         DeflateBlock currentBlock = firstBlock;
 
-        while (currentBlock != null) {
-            boolean finishPass = true;
-            boolean didRemove = false;
-            final DeflateBlock nextBlock = currentBlock.getNext();
+        while ((currentBlock != null) && !budget.isExhausted()) {
+            final DecodedData blockData = currentBlock.getDecodedData();
 
-            // Merge block if it's not empty. If it's the only block in a stream, ignore it.
-            if (first && (nextBlock == null)) {
-                pos += currentBlock.getSizeBits(pos + 3) + 3;
-            } else if (currentBlock.getUncompressedData().length > 0) {
-                pos += 3;
+            if (blockData.length() > 0) {
+                if (!budget.useCandidate()) {
+                    break;
+                }
+
+                int[] litlenFreq = null;
+                int[] distFreq = null;
+
+                if (isHuffman(currentBlock)) {
+                    litlenFreq = ((DeflateBlockHuffman) currentBlock).getLitlenFreq();
+                    distFreq = ((DeflateBlockHuffman) currentBlock).getDistFreq();
+                }
+
+                final DeflateBlockHuffman reparsed = DeflateBlockHuffman.ofLitlens(currentBlock.getPrevious(), parser.parse(offset, offset + blockData.length(), litlenFreq, distFreq), blockData);
+                final long currentSaved = currentBlock.getSizeBits(pos + 3) - reparsed.getSizeBits(pos + 3);
+
+                if (currentSaved > 0) {
+                    saved += currentSaved;
+
+                    if (PRINT_OPT_FINE) {
+                        System.out.println("Reparsing block " + block + " saved " + currentSaved + " bits");
+                    }
 
-                if ((nextBlock != null) && currentBlock.canMerge(nextBlock)) {
-                    final DeflateBlock merged = optimiseBlock(currentBlock.merge(nextBlock), pos);
-                    final long currentSizeNoMerge = currentBlock.getSizeBits(pos);
-                    final long nextSizeNoMerge = nextBlock.getSizeBits(pos + currentSizeNoMerge + 3);
-                    final long currentSaved = (currentSizeNoMerge + 3 + nextSizeNoMerge) - merged.getSizeBits(pos);
+                    reparsed.setNext(currentBlock.getNext());
+                    currentBlock.replace(reparsed);
+                    currentBlock.discard();
+
+                    if (currentBlock == firstBlock) {
+                        setFirstBlock(reparsed);
+                    }
+
+                    currentBlock = reparsed;
+                }
+            }
+
+            pos += currentBlock.getSizeBits(pos + 3) + 3;
+            offset += blockData.length();
+            block++;
+            currentBlock = currentBlock.getNext();
+        }
+
+        return saved;
+    }
+
+    /**
+     * Splits each Huffman block into several blocks with their own Huffman codes if it makes the stream smaller, stopping when the budget runs out.
+     * Split points are picked from estimated sizes by {@link BlockSplitter}, then each part is optimised with the effort of the options,
+     * and the block is only split if the optimised parts are smaller than the original block.
+     */
+    public long splitBlocks(OptimiseOptions options, OptimiseOptions.Budget budget) {
+        long saved = 0;
+        long pos = 0;
+        int block = 0;
+        DeflateBlock currentBlock = firstBlock;
+
+        while ((currentBlock != null) && !budget.isExhausted()) {
+            if (isHuffman(currentBlock)) {
+                final DeflateBlockHuffman original = (DeflateBlockHuffman) currentBlock;
+                final IntList splitPoints = BlockSplitter.findSplitPoints(original);
+
+                if (splitPoints.size() > 0) {
+                    final List<DeflateBlock> parts = new ArrayList<>(splitPoints.size() + 1);
+                    final List<Pair<CandidateSearch, Long>> searches = new ArrayList<>(splitPoints.size() + 1);
+                    final long oldSizeBits = original.getSizeBits(pos + 3) + 3;
+                    long newSizeBits = 0;
+                    DeflateBlockHuffman rest = original;
+                    int restStart = 0;
+
+                    for (int i = 0; i <= splitPoints.size(); i++) {
+                        final DeflateBlockHuffman part;
+
+                        if (i < splitPoints.size()) {
+                            final DeflateBlockHuffman[] split = rest.split(splitPoints.get(i) - restStart);
+                            part = split[0];
+                            rest = split[1];
+                            restStart = splitPoints.get(i);
+                        } else {
+                            part = rest;
+                        }
+
+                        final long partPos = pos + newSizeBits + 3;
+                        final CandidateSearch search = searchBlock(part, partPos, options.getEffort(), budget);
+                        final DeflateBlock optimisedPart = search.getBest(partPos);
+                        newSizeBits += optimisedPart.getSizeBits(partPos) + 3;
+                        parts.add(optimisedPart);
+                        searches.add(new Pair<>(search, partPos));
+                    }
 
-                    if ((merged != currentBlock) && (currentSaved > 0)) {
-                        finishPass = false;
-                        pass++;
+                    if (newSizeBits < oldSizeBits) {
+                        final long currentSaved = oldSizeBits - newSizeBits;
                         saved += currentSaved;
 
                         if (PRINT_OPT_FINE) {
-                            System.out.println("Merge pass " + pass + " saved " + currentSaved + " bits in block " + block);
+                            System.out.println("Splitting block " + block + " into " + parts.size() + " blocks saved " + currentSaved + " bits");
                         }
 
-                        currentBlock.replace(merged);
-                        currentBlock.discard();
-                        final DeflateBlock next = nextBlock.getNext();
-                        merged.setNext(next);
+                        for (final Pair<CandidateSearch, Long> search : searches) {
+                            search.k.recordStats(search.v);
+                        }
+
+                        final DeflateBlock previous = original.getPrevious();
+                        final DeflateBlock next = original.getNext();
+                        DeflateBlock linked = previous;
+
+                        if (original == firstBlock) {
+                            setFirstBlock(parts.get(0));
+                        }
+
+                        for (final DeflateBlock part : parts) {
+                            part.setPrevious(linked);
+
+                            if (linked != null) {
+                                linked.setNext(part);
+                            }
+
+                            linked = part;
+                        }
+
+                        linked.setNext(next);
 
                         if (next != null) {
-                            next.setPrevious(merged);
+                            next.setPrevious(linked);
                         }
 
-                        currentBlock = merged;
+                        original.discard();
 
-                        if (first) {
-                            setFirstBlock(merged);
+                        // Skip over the new blocks, as their parts were already searched
+                        for (int i = 0; i < (parts.size() - 1); i++) {
+                            pos += parts.get(i).getSizeBits(pos + 3) + 3;
+                            block++;
                         }
+
+                        currentBlock = parts.get(parts.size() - 1);
                     }
                 }
+            }
 
-                pos += currentBlock.getSizeBits(pos);
-            } else {
+            pos += currentBlock.getSizeBits(pos + 3) + 3;
+            block++;
+            currentBlock = currentBlock.getNext();
+        }
+
+        return saved;
+    }
+
+    /**
+     * Moves the boundary between each pair of adjacent Huffman blocks if it makes the stream smaller, stopping when the budget runs out.
+     * The best boundary is picked from estimated sizes, then both blocks are recoded and optimised with the effort of the options,
+     * and the boundary is only moved if the optimised blocks are smaller than the original blocks.
+     */
+    public long shiftBlockBoundaries(OptimiseOptions options, OptimiseOptions.Budget budget) {
+        long saved = 0;
+        long pos = 0;
+        int block = 0;
+        DeflateBlock currentBlock = firstBlock;
+
+        while ((currentBlock != null) && !budget.isExhausted()) {
+            final DeflateBlock nextBlock = currentBlock.getNext();
+
+            if ((nextBlock != null) && isHuffman(currentBlock) && isHuffman(nextBlock)) {
+                final DeflateBlockHuffman first = (DeflateBlockHuffman) currentBlock;
+                final DeflateBlockHuffman second = (DeflateBlockHuffman) nextBlock;
+                final int shift = BlockBoundaries.findBestShift(first, second);
+
+                if (shift != 0) {
+                    final DeflateBlockHuffman[] split = ((DeflateBlockHuffman) first.merge(second)).split((first.getLitlens().size() - 1) + shift);
+                    final long firstSizeBits = first.getSizeBits(pos + 3) + 3;
+                    final long oldSizeBits = firstSizeBits + second.getSizeBits(pos + firstSizeBits + 3) + 3;
+                    final CandidateSearch firstSearch = searchBlock(split[0], pos + 3, options.getEffort(), budget);
+                    final DeflateBlock newFirst = firstSearch.getBest(pos + 3);
+                    final long newFirstSizeBits = newFirst.getSizeBits(pos + 3) + 3;
+                    final CandidateSearch secondSearch = searchBlock(split[1], pos + newFirstSizeBits + 3, options.getEffort(), budget);
+                    final DeflateBlock newSecond = secondSearch.getBest(pos + newFirstSizeBits + 3);
+                    final long newSizeBits = newFirstSizeBits + newSecond.getSizeBits(pos + newFirstSizeBits + 3) + 3;
+
+                    if (newSizeBits < oldSizeBits) {
+                        final long currentSaved = oldSizeBits - newSizeBits;
+                        saved += currentSaved;
+
+                        if (PRINT_OPT_FINE) {
+                            System.out.println("Moving boundary after block " + block + " by " + shift + " saved " + currentSaved + " bits");
+                        }
+
+                        firstSearch.recordStats(pos + 3);
+                        secondSearch.recordStats(pos + newFirstSizeBits + 3);
+
+                        final DeflateBlock previous = first.getPrevious();
+                        final DeflateBlock next = second.getNext();
+
+                        if (first == firstBlock) {
+                            setFirstBlock(newFirst);
+                        }
+
+                        newFirst.setPrevious(previous);
+                        newFirst.setNext(newSecond);
+                        newSecond.setPrevious(newFirst);
+                        newSecond.setNext(next);
+
+                        if (previous != null) {
+                            previous.setNext(newFirst);
+                        }
+
+                        if (next != null) {
+                            next.setPrevious(newSecond);
+                        }
+
+                        first.discard();
+                        second.discard();
+                        currentBlock = newFirst;
+                    }
+                }
+            }
+
+            pos += currentBlock.getSizeBits(pos + 3) + 3;
+            block++;
+            currentBlock = currentBlock.getNext();
+        }
+
+        return saved;
+    }
+
+    public long mergeBlocks() {
+        return mergeBlocks(OptimiseOptions.Budget.UNLIMITED);
+    }
+
+    public long mergeBlocks(OptimiseOptions.Budget budget) {
+        return mergeBlocks(OptimiseOptions.DEFAULT, budget);
+    }
+
+    /** Removes empty blocks, unless it's the only block in the stream */
+    private long removeEmptyBlocks() {
+        long pos = 0;
+        long saved = 0;
+        int block = 0;
+        DeflateBlock currentBlock = firstBlock;
+
+        while (currentBlock != null) {
+            final DeflateBlock nextBlock = currentBlock.getNext();
+
+            if ((currentBlock.getDecodedData().length() == 0) && ((currentBlock != firstBlock) || (nextBlock != null))) {
                 final long currentSaved = currentBlock.getSizeBits(pos + 3) + 3;
 
                 if (PRINT_OPT_FINE) {
@@ -626,24 +1049,211 @@ public class DeflateStream {
 
                 saved += currentSaved;
 
-                if (first) {
-                    setFirstBlock(currentBlock.getNext());
+                if (currentBlock == firstBlock) {
+                    setFirstBlock(nextBlock);
                 }
 
                 currentBlock.remove();
-                didRemove = true;
+            } else {
+                pos += currentBlock.getSizeBits(pos + 3) + 3;
             }
 
-            if (finishPass) {
-                block++;
-                currentBlock = currentBlock.getNext();
+            block++;
+            currentBlock = nextBlock;
+        }
 
-                if (first && !didRemove) {
-                    first = false;
+        return saved;
+    }
+
+    /**
+     * Estimates the size of a block after optimisation, including its block header, without searching for candidates:
+     * the smallest of the block as a stored block, and as a Huffman block with fixed Huffman codes or an optimal dynamic Huffman table.
+     * Merged Huffman blocks already use the smaller of these codes, so they're only recoded if recode is true.
+     */
+    private static long estimateSizeBits(DeflateBlock block, long position, boolean recode) {
+        if (block.getDeflateBlockType() == DeflateBlockType.STORED) {
+            return block.getSizeBits(position) + 3;
+        }
+
+        long estimate = block.getSizeBits(position);
+
+        if (recode) {
+            final DeflateBlockHuffman fixed = (DeflateBlockHuffman) block.copy();
+
+            if (fixed.getDeflateBlockType() == DeflateBlockType.DYNAMIC) {
+                fixed.recodeToFixedHuffman();
+            }
+
+            estimate = Math.min(estimate, fixed.getSizeBits(position));
+            final DeflateBlockHuffman dynamic = (DeflateBlockHuffman) fixed.copy();
+            dynamic.recodeHuffman();
+            estimate = Math.min(estimate, dynamic.getSizeBits(position));
+        }
+
+        if (block.getDecodedData().length() <= 65535) {
+            estimate = Math.min(estimate, block.asUncompressed().getSizeBits(position));
+        }
+
+        return estimate + 3;
+    }
+
+    /**
+     * Plans which runs of adjacent blocks to merge, by finding the partition of the blocks into runs with the smallest estimated size.
+     * The estimated size of each run is computed once, by merging runs one block at a time, up to the maximum run length.
+     * Returns the start of the last run which ends at each block, where the last run ending at the last block ends at index 0.
+     */
+    private static int[] planMerges(List<DeflateBlock> blocks, long[] positions, int maxRun, OptimiseOptions.Budget budget) {
+        final int count = blocks.size();
+        // Smallest estimated size of the first i blocks, and the start of the last run in it
+        final long[] smallest = new long[count + 1];
+        final int[] runStarts = new int[count + 1];
+        Arrays.fill(smallest, Long.MAX_VALUE);
+        smallest[0] = 0;
+
+        for (int start = 0; start < count; start++) {
+            final DeflateBlock first = blocks.get(start);
+            final long single = smallest[start] + estimateSizeBits(first, positions[start], true);
+
+            if (single < smallest[start + 1]) {
+                smallest[start + 1] = single;
+                runStarts[start + 1] = start;
+            }
+
+            DeflateBlock run = first;
+
+            for (int end = start + 2; (end <= count) && ((end - start) <= maxRun) && !budget.isExhausted(); end++) {
+                final DeflateBlock append = blocks.get(end - 1);
+
+                if (!run.canMerge(append)) {
+                    break;
                 }
 
-                pass = 0;
+                run = run.merge(append);
+                final long merged = smallest[start] + estimateSizeBits(run, positions[start], false);
+
+                if (merged < smallest[end]) {
+                    smallest[end] = merged;
+                    runStarts[end] = start;
+                }
+            }
+        }
+
+        return runStarts;
+    }
+
+    /**
+     * Merges runs of adjacent blocks if it makes the stream smaller, optimising merged blocks with the effort of the options, and stopping when the budget runs out.
+     * Each pass plans runs of at most the maximum merge run length over the current blocks, so merging is repeated until a pass merges no runs,
+     * and merged blocks can be merged again with their neighbours.
+     */
+    public long mergeBlocks(OptimiseOptions options, OptimiseOptions.Budget budget) {
+        long saved = removeEmptyBlocks();
+        long passSaved;
+
+        do {
+            passSaved = mergeRuns(options, budget);
+            saved += passSaved;
+        } while ((passSaved > 0) && !budget.isExhausted());
+
+        return saved;
+    }
+
+    /**
+     * Runs one pass of merging. Runs are planned from estimated sizes, so only the runs in the plan are fully optimised.
+     * Each planned run is only merged if the optimised merged block is smaller than the blocks it replaces.
+     */
+    private long mergeRuns(OptimiseOptions options, OptimiseOptions.Budget budget) {
+        long saved = 0;
+        final List<DeflateBlock> blocks = new ArrayList<>();
+
+        for (DeflateBlock currentBlock = firstBlock; currentBlock != null; currentBlock = currentBlock.getNext()) {
+            blocks.add(currentBlock);
+        }
+
+        final int count = blocks.size();
+
+        if (count < 2) {
+            return saved;
+        }
+
+        final long[] positions = new long[count];
+        long pos = 0;
+
+        for (int i = 0; i < count; i++) {
+            pos += 3;
+            positions[i] = pos;
+            pos += blocks.get(i).getSizeBits(pos);
+        }
+
+        final int[] runStarts = planMerges(blocks, positions, options.getMaxMergeRun(), budget);
+        final List<Pair<Integer, Integer>> runs = new ArrayList<>();
+
+        for (int end = count; end > 0; end = runStarts[end]) {
+            runs.add(0, new Pair<>(runStarts[end], end));
+        }
+
+        pos = 0;
+
+        for (final Pair<Integer, Integer> run : runs) {
+            final int start = run.k;
+            final int end = run.v;
+            long unmergedSizeBits = 0;
+
+            for (int i = start; i < end; i++) {
+                unmergedSizeBits += blocks.get(i).getSizeBits(pos + unmergedSizeBits + 3) + 3;
+            }
+
+            if (((end - start) > 1) && !budget.isExhausted()) {
+                DeflateBlock merged = blocks.get(start);
+
+                for (int i = start + 1; i < end; i++) {
+                    merged = merged.merge(blocks.get(i));
+                }
+
+                final CandidateSearch search = searchBlock(merged, pos + 3, options.getEffort(), budget);
+                merged = search.getBest(pos + 3);
+                final long mergedSizeBits = merged.getSizeBits(pos + 3) + 3;
+
+                if (mergedSizeBits < unmergedSizeBits) {
+                    final long currentSaved = unmergedSizeBits - mergedSizeBits;
+                    saved += currentSaved;
+
+                    if (PRINT_OPT_FINE) {
+                        System.out.println("Merging blocks " + start + " to " + (end - 1) + " saved " + currentSaved + " bits");
+                    }
+
+                    search.recordStats(pos + 3);
+
+                    final DeflateBlock first = blocks.get(start);
+                    final DeflateBlock last = blocks.get(end - 1);
+                    final DeflateBlock previous = first.getPrevious();
+                    final DeflateBlock next = last.getNext();
+
+                    if (first == firstBlock) {
+                        setFirstBlock(merged);
+                    }
+
+                    merged.setPrevious(previous);
+                    merged.setNext(next);
+
+                    if (previous != null) {
+                        previous.setNext(merged);
+                    }
+
+                    if (next != null) {
+                        next.setPrevious(merged);
+                    }
+
+                    for (int i = start; i < end; i++) {
+                        blocks.get(i).discard();
+                    }
+
+                    pos += mergedSizeBits;
+                    continue;
+                }
             }
+
+            pos += unmergedSizeBits;
         }
 
         return saved;
@@ -0,0 +1,96 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.NeRdTheNed.deft4j.huffman.Huffman;
+
+/**
+ * Finds earlier occurrences of the sequences copied by backrefs, in the decoded data of a block and the window of previous blocks before it,
+ * so each backref can be given the distance which is cheapest to code with the block's Huffman codes.
+ */
+final class DistanceIndex {
+    /** Maximum amount of earlier positions checked for each backref */
+    private static final int MAX_CHAIN = 1024;
+
+    /** Chains of the decoded data of previous blocks, followed by the decoded data of the block */
+    private final HashChain window;
+    /** Amount of bytes from previous blocks at the start of the window */
+    private final int windowStart;
+
+    DistanceIndex(DeflateBlock block) {
+        final DecodedData decoded = block.getDecodedData();
+        // Collect up to a full window of data from previous blocks
+        final List<DecodedData> previous = new ArrayList<>();
+        int previousLength = 0;
+
+        for (DeflateBlock prev = block.getPrevious(); (prev != null) && (previousLength < Constants.LZZ_BACKREF_LEN); prev = prev.getPrevious()) {
+            final DecodedData prevData = prev.getDecodedData();
+            previous.add(prevData);
+            previousLength += prevData.length();
+        }
+
+        windowStart = Math.min(previousLength, Constants.LZZ_BACKREF_LEN);
+        final byte[] windowData = new byte[windowStart + decoded.length()];
+        int pos = windowStart;
+
+        for (final DecodedData prevData : previous) {
+            final int copied = Math.min(prevData.length(), pos);
+            pos -= copied;
+            prevData.slice(prevData.length() - copied, prevData.length()).copyTo(windowData, pos);
+        }
+
+        decoded.copyTo(windowData, windowStart);
+        window = new HashChain(windowData);
+    }
+
+    /** Returns the size of a distance coded with the given Huffman codes, or -1 if it has no code */
+    private static int getDistanceSize(int distance, Huffman distDec) {
+        final int dist = Constants.distance2dist(distance);
+
+        if ((dist >= distDec.table.codeLen.length) || (distDec.getSymLen(dist) < 1)) {
+            return -1;
+        }
+
+        return distDec.getSymLen(dist) + (int) Constants.dist_tbl[dist].ebits;
+    }
+
+    /**
+     * Returns the distance of the earlier occurrence of the len bytes at the given position in the block's decoded data which is cheapest to code with the given Huffman codes.
+     * The current distance is kept if no other distance is cheaper.
+     */
+    int findCheapestDistance(int pos, int len, int distance, Huffman distDec) {
+        final int windowPos = windowStart + pos;
+        int best = distance;
+        int bestSize = getDistanceSize(distance, distDec);
+
+        if (bestSize < 0) {
+            bestSize = Integer.MAX_VALUE;
+        }
+
+        int checked = 0;
+
+        for (int from = window.previous(windowPos); (from >= 0) && (checked < MAX_CHAIN); from = window.previous(from)) {
+            final int candidate = windowPos - from;
+
+            if (candidate > Constants.MAX_DISTANCE) {
+                break;
+            }
+
+            // Extra bits only grow with the distance, and every code has at least one bit, so no further distance can be cheaper
+            if (Constants.dist_tbl[Constants.distance2dist(candidate)].ebits >= bestSize) {
+                break;
+            }
+
+            checked++;
+            final int size = getDistanceSize(candidate, distDec);
+
+            if ((size >= 0) && (size < bestSize) && window.matches(from, windowPos, len)) {
+                best = candidate;
+                bestSize = size;
+            }
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.util.Arrays;
+
+/**
+ * Chains each position of some data to the nearest earlier position with the same hash of its first three bytes, as with the hash chains used by zlib.
+ * Following the chain from a position visits every earlier position which could start a backref to it, nearest first.
+ */
+final class HashChain {
+    private static final int HASH_BITS = 15;
+    private static final int HASH_SIZE = 1 << HASH_BITS;
+    private static final int HASH_SHIFT = 5;
+
+    private final byte[] data;
+    /** The nearest earlier position with the same hash as each position, or -1 if there isn't one */
+    private final int[] chain;
+
+    HashChain(byte[] data) {
+        this.data = data;
+        chain = new int[data.length];
+        final int[] head = new int[HASH_SIZE];
+        Arrays.fill(head, -1);
+        Arrays.fill(chain, -1);
+
+        for (int i = 0; (i + 2) < data.length; i++) {
+            final int hash = hash(i);
+            chain[i] = head[hash];
+            head[hash] = i;
+        }
+    }
+
+    private int hash(int pos) {
+        return ((((data[pos] & 0xFF) << (2 * HASH_SHIFT)) ^ ((data[pos + 1] & 0xFF) << HASH_SHIFT)) ^ (data[pos + 2] & 0xFF)) & (HASH_SIZE - 1);
+    }
+
+    /** Returns the nearest earlier position which might have the same first three bytes as the given position, or -1 if there isn't one */
+    int previous(int pos) {
+        return chain[pos];
+    }
+
+    /** Returns true if the len bytes at both positions are equal */
+    boolean matches(int from, int pos, int len) {
+        // The last byte is the most likely to differ
+        if (data[(from + len) - 1] != data[(pos + len) - 1]) {
+            return false;
+        }
+
+        for (int i = 0; i < (len - 1); i++) {
+            if (data[from + i] != data[pos + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /** Returns the amount of equal bytes at both positions, up to the given limit */
+    int matchLength(int from, int pos, int limit) {
+        int len = 0;
+
+        while ((len < limit) && (data[from + len] == data[pos + len])) {
+            len++;
+        }
+
+        return len;
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.NeRdTheNed.deft4j.util.Pair;
+
+/**
+ * Caches the smallest dynamic header found for each set of Huffman codes.
+ * Headers only depend on the block's Huffman codes, so they're shared between every block with the same codes.
+ * The block's current header and a few {@link HeaderFlags} combinations are used as starting points for {@link DeflateBlockHuffman#rewriteHeaderOptimal()},
+ * as the codelen code it converges to depends on the starting point. Every combination can be tried instead, which is much slower and rarely smaller.
+ */
+final class HeaderCache {
+    private static final class Key {
+        private final int[] litlenCodeLens;
+        private final int[] distCodeLens;
+        private final int hash;
+
+        /** The code lengths are copied, as blocks can replace their Huffman codes after a header is cached */
+        Key(int[] litlenCodeLens, int[] distCodeLens) {
+            this.litlenCodeLens = litlenCodeLens.clone();
+            this.distCodeLens = distCodeLens.clone();
+            hash = (31 * Arrays.hashCode(litlenCodeLens)) + Arrays.hashCode(distCodeLens);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return (hash == other.hash) && Arrays.equals(litlenCodeLens, other.litlenCodeLens) && Arrays.equals(distCodeLens, other.distCodeLens);
+        }
+    }
+
+    private final Map<Key, Pair<String, DeflateBlockHuffman.DynamicHeader>> headers = new ConcurrentHashMap<>();
+    /** True to start from the header created by every {@link HeaderFlags} combination, rather than only {@link HeaderFlags#SEEDS} */
+    private final boolean allFlags;
+
+    HeaderCache(boolean allFlags) {
+        this.allFlags = allFlags;
+    }
+
+    /** Returns the smallest header found for the block, and the name of the options which created it, or null if the block isn't a dynamic block */
+    Pair<String, DeflateBlockHuffman.DynamicHeader> getHeader(DeflateBlockHuffman block) {
+        if (block.getDeflateBlockType() != DeflateBlockType.DYNAMIC) {
+            return null;
+        }
+
+        final Key key = new Key(block.getLitlenCodeLens(), block.getDistCodeLens());
+        final Pair<String, DeflateBlockHuffman.DynamicHeader> cached = headers.get(key);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        // Found outside the map, so searches for other headers aren't blocked while this one is found.
+        // Threads which race on the same codes both find the header, and the first one found is kept.
+        final Pair<String, DeflateBlockHuffman.DynamicHeader> found = findSmallestHeader(block);
+        final Pair<String, DeflateBlockHuffman.DynamicHeader> existing = headers.putIfAbsent(key, found);
+        return existing != null ? existing : found;
+    }
+
+    /**
+     * Rewrites the header of the block with {@link DeflateBlockHuffman#rewriteHeaderOptimal()} starting from its current header,
+     * and returns the smaller of the result and the smallest header so far. Starting headers which were already tried are skipped.
+     */
+    private static Pair<String, DeflateBlockHuffman.DynamicHeader> tryOptimal(DeflateBlockHuffman rewrite, String name, List<DeflateBlockHuffman.DynamicHeader> tried, Pair<String, DeflateBlockHuffman.DynamicHeader> smallest) {
+        final DeflateBlockHuffman.DynamicHeader header = rewrite.getDynamicHeader();
+
+        for (final DeflateBlockHuffman.DynamicHeader existing : tried) {
+            if (existing.isSameHeader(header)) {
+                return smallest;
+            }
+        }
+
+        tried.add(header);
+        rewrite.rewriteHeaderOptimal();
+        final DeflateBlockHuffman.DynamicHeader optimal = rewrite.getDynamicHeader();
+
+        if ((smallest == null) || (optimal.getSizeBits() < smallest.v.getSizeBits())) {
+            return new Pair<>(optimal.getSizeBits() < header.getSizeBits() ? name + " optimal-packed" : name, optimal);
+        }
+
+        return smallest;
+    }
+
+    private Pair<String, DeflateBlockHuffman.DynamicHeader> findSmallestHeader(DeflateBlockHuffman block) {
+        final List<DeflateBlockHuffman.DynamicHeader> tried = new ArrayList<>();
+        Pair<String, DeflateBlockHuffman.DynamicHeader> smallest = tryOptimal((DeflateBlockHuffman) block.copy(), "current-header", tried, null);
+
+        for (final HeaderFlags flags : allFlags ? HeaderFlags.ALL : HeaderFlags.SEEDS) {
+            final DeflateBlockHuffman rewrite = (DeflateBlockHuffman) block.copy();
+            flags.rewrite(rewrite);
+            smallest = tryOptimal(rewrite, flags.name, tried, smallest);
+        }
+
+        return smallest;
+    }
+}
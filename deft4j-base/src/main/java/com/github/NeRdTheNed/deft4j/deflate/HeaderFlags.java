@@ -0,0 +1,112 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Options for rewriting a dynamic header */
+final class HeaderFlags {
+    private static final boolean TRY_ALT_8 = false;
+
+    private static final boolean DEFAULT_8 = false;
+    private static final boolean ALT_8 = !DEFAULT_8;
+
+    private static final boolean[] TRUE_FALSE = {true, false};
+    private static final boolean[] FALSE_TRUE = {false, true};
+    private static final boolean[] FALSE = {false};
+    private static final boolean[] TRUE = {true};
+    private static final boolean[] ALT_8_ARR = TRY_ALT_8 ? new boolean[] {DEFAULT_8, ALT_8} : new boolean[] {DEFAULT_8};
+
+    /** Every combination of options tried when rewriting a dynamic header */
+    static final List<HeaderFlags> ALL;
+    /** The combinations used as extra starting points when packing codelens optimally, see {@link HeaderCache} */
+    static final List<HeaderFlags> SEEDS;
+
+    static {
+        final List<HeaderFlags> all = new ArrayList<>();
+
+        for (final boolean noRepZeros : FALSE_TRUE) {
+            for (final boolean prune : FALSE_TRUE) {
+                for (final boolean noRep : noRepZeros ? FALSE : FALSE_TRUE) {
+                    for (final boolean noZRep : noRepZeros ? TRUE : FALSE_TRUE) {
+                        for (final boolean noZRep2 : FALSE_TRUE) {
+                            for (final boolean ohh : TRUE_FALSE) {
+                                if (ohh) {
+                                    if (noRep) {
+                                        continue;
+                                    }
+
+                                    for (final boolean alt8 : ALT_8_ARR) {
+                                        for (final boolean use8 : TRUE_FALSE) {
+                                            for (final boolean use7 : TRUE_FALSE) {
+                                                if (!use8 && (alt8 || !use7)) {
+                                                    continue;
+                                                }
+
+                                                final String name = "optimised-recoded ohh" + (noZRep ? " no-zrep" : "") + (noZRep2 ? " no-zrep2" : "") + (use8 ? alt8 ? " alt-optimise-8" : " optimise-8" : "") + (use7 ? " optimise-7" : "") + (prune ? " rle-pruned" : "") + (noRepZeros ? " no-rep-zeros" : "");
+                                                all.add(new HeaderFlags(true, use8, use7, alt8, false, noZRep, noZRep2, prune, noRepZeros, name));
+                                            }
+                                        }
+                                    }
+                                } else {
+                                    final String name = "optimised-recoded" + (noRep ? " no-rep" : "") + (noZRep ? " no-zrep" : "") + (noZRep2 ? " no-zrep2" : "") + (prune ? " rle-pruned" : "") + (noRepZeros ? " no-rep-zeros" : "");
+                                    all.add(new HeaderFlags(false, false, false, false, noRep, noZRep, noZRep2, prune, noRepZeros, name));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        ALL = Collections.unmodifiableList(all);
+        // The combinations which most often lead to the smallest header
+        final List<HeaderFlags> seeds = new ArrayList<>();
+
+        for (final HeaderFlags flags : all) {
+            final boolean ohhSeed = flags.ohh && flags.use8 && flags.use7 && !flags.alt8 && (flags.noZRep != flags.noZRep2);
+            final boolean noRepSeed = !flags.ohh && flags.noRep && !flags.noZRep && !flags.noZRep2;
+
+            if ((ohhSeed || noRepSeed) && !flags.prune && !flags.noRepZeros) {
+                seeds.add(flags);
+            }
+        }
+
+        SEEDS = Collections.unmodifiableList(seeds);
+    }
+
+    final boolean ohh;
+    final boolean use8;
+    final boolean use7;
+    final boolean alt8;
+    final boolean noRep;
+    final boolean noZRep;
+    final boolean noZRep2;
+    final boolean prune;
+    final boolean noRepZeros;
+    final String name;
+
+    private HeaderFlags(boolean ohh, boolean use8, boolean use7, boolean alt8, boolean noRep, boolean noZRep, boolean noZRep2, boolean prune, boolean noRepZeros, String name) {
+        this.ohh = ohh;
+        this.use8 = use8;
+        this.use7 = use7;
+        this.alt8 = alt8;
+        this.noRep = noRep;
+        this.noZRep = noZRep;
+        this.noZRep2 = noZRep2;
+        this.prune = prune;
+        this.noRepZeros = noRepZeros;
+        this.name = name;
+    }
+
+    /** Rewrites and optimises the dynamic header of the given block with these options */
+    void rewrite(DeflateBlockHuffman block) {
+        block.rewriteHeader(ohh, use8, use7, alt8, noRep, noZRep, noZRep2, noRepZeros);
+
+        if (prune) {
+            block.recodeHeaderToLessRLEMatches();
+        }
+
+        block.optimiseHeader();
+    }
+}
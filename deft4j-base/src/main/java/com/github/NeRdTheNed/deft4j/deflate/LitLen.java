@@ -1,65 +1,66 @@
 package com.github.NeRdTheNed.deft4j.deflate;
 
-import java.util.Arrays;
-import java.util.Objects;
-
-public class LitLen {
-    @Override
-    public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = (prime * result) + Arrays.hashCode(decodedVal);
-        return (prime * result) + Objects.hash(dist, edgecase, litlen);
+/**
+ * Packs literals, backrefs and RLE encoded codelens into a single int.
+ * The lowest 9 bits hold the literal / length / RLE symbol, the next 16 bits hold the distance / RLE run length,
+ * and the bit above that is set for backrefs of length 258 which use code 284.
+ * Decoded values aren't stored, as each token's decoded bytes follow the previous token's in the decoded data.
+ */
+public final class LitLen {
+    /** Private constructor to hide the default one */
+    private LitLen() {
+        // This space left intentionally blank
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        if (this == obj) {
-            return true;
-        }
-
-        if (!(obj instanceof LitLen)) {
-            return false;
-        }
+    private static final int LITLEN_MASK = 0x1FF;
+    private static final int DIST_SHIFT = 9;
+    private static final int DIST_MASK = 0xFFFF;
+    private static final int EDGECASE = 1 << 25;
 
-        final LitLen other = (LitLen) obj;
-        return Arrays.equals(decodedVal, other.decodedVal) && (dist == other.dist) && (edgecase == other.edgecase) && (litlen == other.litlen);
+    public static int of(long dist, long litlen, boolean edgecase) {
+        assert (litlen >= 0) && (litlen <= LITLEN_MASK);
+        assert (dist >= 0) && (dist <= Constants.MAX_DISTANCE);
+        return (int) litlen | ((int) dist << DIST_SHIFT) | (edgecase ? EDGECASE : 0);
     }
 
-    public final long dist;
-    public final long litlen;
-    public final boolean edgecase;
+    public static int of(long dist, long litlen) {
+        return of(dist, litlen, false);
+    }
 
-    public byte[] decodedVal;
+    public static int of(long litlen) {
+        return of(0, litlen);
+    }
 
-    public LitLen(long dist, long litlen, boolean edgecase) {
-        this.dist = dist;
-        this.litlen = litlen;
-        this.edgecase = edgecase;
+    public static int dist(int token) {
+        return (token >>> DIST_SHIFT) & DIST_MASK;
     }
 
-    public LitLen(long dist, long litlen) {
-        this(dist, litlen, false);
+    public static int litlen(int token) {
+        return token & LITLEN_MASK;
     }
 
-    public LitLen(long litlen) {
-        this(0, litlen);
+    public static boolean edgecase(int token) {
+        return (token & EDGECASE) != 0;
     }
 
-    public LitLen copy() {
-        final LitLen newLit = new LitLen(dist, litlen, edgecase);
+    /** Returns the amount of decoded bytes for a literal / backref */
+    public static int decodedLen(int token) {
+        final int dist = dist(token);
 
-        if (decodedVal != null) {
-            //newLit.decodedVal = new byte[decodedVal.length];
-            //System.arraycopy(decodedVal, 0, newLit.decodedVal, 0, decodedVal.length);
-            newLit.decodedVal = decodedVal;
+        if (dist != 0) {
+            return litlen(token);
         }
 
-        return newLit;
+        return litlen(token) == Constants.LITLEN_EOB ? 0 : 1;
+    }
+
+    /** Returns the amount of decoded codelens for a RLE encoded codelen */
+    public static int rleDecodedLen(int token) {
+        final int dist = dist(token);
+        return dist != 0 ? dist : 1;
     }
 
-    @Override
-    public String toString() {
-        return "LitLen [litlen=" + litlen + ", dist=" + dist + ", edgecase=" + edgecase + ", decodedVal=" + Arrays.toString(decodedVal) + "]";
+    public static String toString(int token) {
+        return "LitLen [litlen=" + litlen(token) + ", dist=" + dist(token) + ", edgecase=" + edgecase(token) + "]";
     }
 }
@@ -0,0 +1,254 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+
+import com.github.NeRdTheNed.deft4j.huffman.Huffman;
+import com.github.NeRdTheNed.deft4j.util.ChunkedIntList;
+import com.github.NeRdTheNed.deft4j.util.IntList;
+import com.github.NeRdTheNed.deft4j.util.Pair;
+
+/**
+ * Parses uncompressed data into literals / backrefs, by finding the cheapest path through every match at every position, as Zopfli does.
+ * Symbol costs start from the histograms of an existing parse, and each parse is repeated with the costs of the previous parse,
+ * keeping the parse with the smallest estimated size.
+ */
+final class OptimalParser {
+    /** Maximum amount of earlier positions checked for matches at each position */
+    private static final int MAX_CHAIN = 256;
+    /** Maximum amount of times a range is parsed */
+    private static final int MAX_ITERATIONS = 8;
+    private static final int MATCH_LEN_SHIFT = 16;
+    private static final int MATCH_DIST_MASK = (1 << MATCH_LEN_SHIFT) - 1;
+
+    private final HashChain chain;
+    private final byte[] data;
+
+    OptimalParser(byte[] data) {
+        this.data = data;
+        chain = new HashChain(data);
+    }
+
+    /** Symbol costs in bits */
+    private static final class CostModel {
+        /** Costs of the fixed Huffman codes */
+        static final CostModel FIXED = new CostModel(fromCodeLens(Huffman.FIXED_LITLEN_INST.table.codeLen, Constants.MAX_LITLEN_LENS), fromCodeLens(Huffman.FIXED_DIST_INST.table.codeLen, Constants.MAX_DIST_LENS));
+
+        private final double[] litlenCosts;
+        private final double[] distCosts;
+        /** Cost of each match length, including extra bits */
+        private final double[] lenCosts = new double[Constants.MAX_LEN + 1];
+
+        private CostModel(double[] litlenCosts, double[] distCosts) {
+            this.litlenCosts = litlenCosts;
+            this.distCosts = distCosts;
+
+            for (int len = Constants.MIN_LEN; len <= Constants.MAX_LEN; len++) {
+                final int sym = Constants.len2litlen(len, false);
+                lenCosts[len] = litlenCosts[sym] + Constants.litlen_tbl[sym - Constants.LITLEN_TBL_OFFSET].ebits;
+            }
+        }
+
+        /** Costs from symbol histograms. Symbols which weren't used cost as much as a symbol used once. */
+        CostModel(int[] litlenFreq, int[] distFreq) {
+            this(fromHistogram(litlenFreq, Constants.MAX_LITLEN_LENS), fromHistogram(distFreq, Constants.MAX_DIST_LENS));
+        }
+
+        private static double[] fromCodeLens(int[] codeLens, int length) {
+            final double[] costs = new double[length];
+
+            for (int i = 0; i < Math.min(codeLens.length, length); i++) {
+                costs[i] = codeLens[i];
+            }
+
+            return costs;
+        }
+
+        private static double[] fromHistogram(int[] freq, int length) {
+            long total = 0;
+
+            for (int i = 0; i < Math.min(freq.length, length); i++) {
+                total += freq[i];
+            }
+
+            final double log2Total = total > 0 ? log2(total) : 0;
+            final double[] costs = new double[length];
+
+            for (int i = 0; i < length; i++) {
+                costs[i] = (i < freq.length) && (freq[i] > 0) ? log2Total - log2(freq[i]) : log2Total;
+            }
+
+            return costs;
+        }
+
+        private static double log2(double value) {
+            return Math.log(value) / Math.log(2);
+        }
+
+        double getLiteralCost(int literal) {
+            return litlenCosts[literal];
+        }
+
+        double getDistanceCost(int distance) {
+            final int dist = Constants.distance2dist(distance);
+            return distCosts[dist] + Constants.dist_tbl[dist].ebits;
+        }
+    }
+
+    /**
+     * Finds the longest match at each position from start to end, and the nearest match for every shorter length.
+     * Matches at each position are packed as the maximum length and distance of each match which is longer than the previous match,
+     * so a length uses the first match which is at least as long.
+     */
+    private IntList findMatches(int start, int end, int[] offsets) {
+        final IntList matches = new IntList();
+
+        for (int pos = start; pos < end; pos++) {
+            offsets[pos - start] = matches.size();
+            final int limit = Math.min(Constants.MAX_LEN, data.length - pos);
+            int bestLen = Constants.MIN_LEN - 1;
+            int checked = 0;
+
+            if (limit >= Constants.MIN_LEN) {
+                for (int from = chain.previous(pos); (from >= 0) && (checked < MAX_CHAIN); from = chain.previous(from)) {
+                    final int distance = pos - from;
+
+                    if (distance > Constants.MAX_DISTANCE) {
+                        break;
+                    }
+
+                    checked++;
+
+                    // Only check the full match if it could be longer than the current longest match
+                    if (data[from + bestLen] != data[pos + bestLen]) {
+                        continue;
+                    }
+
+                    final int len = chain.matchLength(from, pos, limit);
+
+                    if (len > bestLen) {
+                        matches.add((len << MATCH_LEN_SHIFT) | distance);
+                        bestLen = len;
+
+                        if (len == limit) {
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        offsets[end - start] = matches.size();
+        return matches;
+    }
+
+    /** Finds the cheapest literals / backrefs for the data from start to end, with the given costs */
+    private ChunkedIntList parse(int start, int end, IntList matches, int[] offsets, CostModel costs) {
+        final int size = end - start;
+        final double[] pathCosts = new double[size + 1];
+        // The literal / backref which ends the cheapest path to each position
+        final int[] pathLitlens = new int[size + 1];
+        Arrays.fill(pathCosts, Double.POSITIVE_INFINITY);
+        pathCosts[0] = 0;
+
+        for (int i = 0; i < size; i++) {
+            final double cost = pathCosts[i];
+            final int literal = data[start + i] & 0xFF;
+            final double literalCost = cost + costs.getLiteralCost(literal);
+
+            if (literalCost < pathCosts[i + 1]) {
+                pathCosts[i + 1] = literalCost;
+                pathLitlens[i + 1] = LitLen.of(literal);
+            }
+
+            int len = Constants.MIN_LEN;
+            final int maxLen = size - i;
+
+            for (int m = offsets[i]; (m < offsets[i + 1]) && (len <= maxLen); m++) {
+                final int match = matches.get(m);
+                final int distance = match & MATCH_DIST_MASK;
+                final int matchLen = Math.min(match >>> MATCH_LEN_SHIFT, maxLen);
+                final double distanceCost = cost + costs.getDistanceCost(distance);
+
+                for (; len <= matchLen; len++) {
+                    final double backrefCost = distanceCost + costs.lenCosts[len];
+
+                    if (backrefCost < pathCosts[i + len]) {
+                        pathCosts[i + len] = backrefCost;
+                        pathLitlens[i + len] = LitLen.of(distance, len);
+                    }
+                }
+            }
+        }
+
+        // Walk the cheapest path back from the end
+        final IntList path = new IntList();
+
+        for (int i = size; i > 0; i -= LitLen.decodedLen(pathLitlens[i])) {
+            path.add(pathLitlens[i]);
+        }
+
+        final ChunkedIntList.Builder litlens = new ChunkedIntList.Builder();
+
+        for (int i = path.size() - 1; i >= 0; i--) {
+            litlens.add(path.get(i));
+        }
+
+        litlens.add(LitLen.of(Constants.LITLEN_EOB));
+        return litlens.build();
+    }
+
+    /** Parses the data from start to end repeatedly, starting with the given costs, and returns the parse with the smallest estimated size */
+    private Pair<ChunkedIntList, Long> parseIterated(int start, int end, IntList matches, int[] offsets, CostModel costs) {
+        ChunkedIntList best = null;
+        long bestSizeBits = Long.MAX_VALUE;
+
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            final ChunkedIntList litlens = parse(start, end, matches, offsets, costs);
+            final int[] litlenFreq = new int[Constants.MAX_LITLEN_LENS];
+            final int[] distFreq = new int[Constants.MAX_DIST_LENS];
+
+            for (final PrimitiveIterator.OfInt iter = litlens.iterator(); iter.hasNext();) {
+                DeflateBlockHuffman.countLitLen(iter.nextInt(), 1, litlenFreq, distFreq);
+            }
+
+            final long sizeBits = DeflateBlockHuffman.estimateSizeBits(litlenFreq, distFreq);
+
+            if (sizeBits >= bestSizeBits) {
+                break;
+            }
+
+            best = litlens;
+            bestSizeBits = sizeBits;
+            costs = new CostModel(litlenFreq, distFreq);
+        }
+
+        return new Pair<>(best, bestSizeBits);
+    }
+
+    /**
+     * Parses the data from start to end into literals / backrefs ending with an end of block symbol.
+     * Backrefs can refer to data before the start. Symbol costs start from the given histograms of an existing parse,
+     * or the fixed Huffman codes if they're null.
+     * Costs which start from a parse with mostly backrefs often settle on a parse with too few literals,
+     * so the parse is repeated with costs where every byte of the data is also counted as a literal, and the smaller parse is kept.
+     */
+    ChunkedIntList parse(int start, int end, int[] litlenFreq, int[] distFreq) {
+        final int[] offsets = new int[(end - start) + 1];
+        final IntList matches = findMatches(start, end, offsets);
+
+        if (litlenFreq == null) {
+            return parseIterated(start, end, matches, offsets, CostModel.FIXED).k;
+        }
+
+        final Pair<ChunkedIntList, Long> seeded = parseIterated(start, end, matches, offsets, new CostModel(litlenFreq, distFreq));
+        final int[] literalLitlenFreq = litlenFreq.clone();
+
+        for (int i = start; i < end; i++) {
+            literalLitlenFreq[data[i] & 0xFF]++;
+        }
+
+        final Pair<ChunkedIntList, Long> literals = parseIterated(start, end, matches, offsets, new CostModel(literalLitlenFreq, distFreq));
+        return literals.v < seeded.v ? literals.k : seeded.k;
+    }
+}
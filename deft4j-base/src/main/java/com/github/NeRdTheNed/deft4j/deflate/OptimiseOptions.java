@@ -0,0 +1,196 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Options for optimising deflate streams.
+ * A time limit and / or a limit on the amount of tried candidate blocks can be set,
+ * after which optimisation stops and keeps the smallest blocks found so far.
+ * The effort level picks which families of candidate blocks are tried.
+ * Statistics of which candidates win are only collected if they're given with {@link #withStats(StrategyStats)}, and can be shared between runs.
+ */
+public final class OptimiseOptions {
+    /** No limit on time or candidates */
+    public static final long UNLIMITED = 0;
+
+    /** Amount of candidate blocks to try for each block, each level tries everything the previous level does */
+    public enum Effort {
+        /** Only the standard block optimisations, and re-encoding blocks as stored or fixed Huffman blocks */
+        FAST,
+        /** Also tries rewritten headers for the block's current and recoded Huffman codes */
+        NORMAL,
+        /** Also tries RLE pruned headers, pruning the least useful symbols, and the blocks from the standard optimisations */
+        HIGH,
+        /** Tries every candidate */
+        EXHAUSTIVE
+    }
+
+    /** Default maximum amount of adjacent blocks merged into one block by each pass of merging */
+    public static final int DEFAULT_MAX_MERGE_RUN = 8;
+
+    public static final OptimiseOptions DEFAULT = new OptimiseOptions(true, DEFAULT_MAX_MERGE_RUN, Effort.EXHAUSTIVE, UNLIMITED, UNLIMITED, null);
+
+    private final boolean mergeBlocks;
+    private final int maxMergeRun;
+    private final Effort effort;
+    private final long timeLimitMillis;
+    private final long maxCandidates;
+    private final StrategyStats stats;
+
+    private OptimiseOptions(boolean mergeBlocks, int maxMergeRun, Effort effort, long timeLimitMillis, long maxCandidates, StrategyStats stats) {
+        if ((timeLimitMillis < 0) || (maxCandidates < 0)) {
+            throw new IllegalArgumentException("Limits must not be negative");
+        }
+
+        if (maxMergeRun < 2) {
+            throw new IllegalArgumentException("Maximum merge run length must be at least 2");
+        }
+
+        if (effort == null) {
+            throw new IllegalArgumentException("Effort must not be null");
+        }
+
+        this.mergeBlocks = mergeBlocks;
+        this.maxMergeRun = maxMergeRun;
+        this.effort = effort;
+        this.timeLimitMillis = timeLimitMillis;
+        this.maxCandidates = maxCandidates;
+        this.stats = stats;
+    }
+
+    public boolean isMergeBlocks() {
+        return mergeBlocks;
+    }
+
+    public int getMaxMergeRun() {
+        return maxMergeRun;
+    }
+
+    public Effort getEffort() {
+        return effort;
+    }
+
+    public long getTimeLimitMillis() {
+        return timeLimitMillis;
+    }
+
+    public long getMaxCandidates() {
+        return maxCandidates;
+    }
+
+    public StrategyStats getStats() {
+        return stats;
+    }
+
+    /** Returns options which try merging adjacent blocks after optimising them, or not */
+    public OptimiseOptions withMergeBlocks(boolean mergeBlocks) {
+        return new OptimiseOptions(mergeBlocks, maxMergeRun, effort, timeLimitMillis, maxCandidates, stats);
+    }
+
+    /** Returns options which merge at most the given amount of adjacent blocks into one block in each pass of merging. This limits the cost of planning each pass, not the amount of blocks left. */
+    public OptimiseOptions withMaxMergeRun(int maxMergeRun) {
+        return new OptimiseOptions(mergeBlocks, maxMergeRun, effort, timeLimitMillis, maxCandidates, stats);
+    }
+
+    /** Returns options which try the candidate blocks of the given effort level */
+    public OptimiseOptions withEffort(Effort effort) {
+        return new OptimiseOptions(mergeBlocks, maxMergeRun, effort, timeLimitMillis, maxCandidates, stats);
+    }
+
+    /** Returns options which stop optimising after the given amount of milliseconds, or never if it's {@link #UNLIMITED} */
+    public OptimiseOptions withTimeLimit(long timeLimitMillis) {
+        return new OptimiseOptions(mergeBlocks, maxMergeRun, effort, timeLimitMillis, maxCandidates, stats);
+    }
+
+    /** Returns options which stop optimising after trying the given amount of candidate blocks, or never if it's {@link #UNLIMITED}. Each block reparsed by {@link Effort#EXHAUSTIVE} counts as a candidate. */
+    public OptimiseOptions withMaxCandidates(long maxCandidates) {
+        return new OptimiseOptions(mergeBlocks, maxMergeRun, effort, timeLimitMillis, maxCandidates, stats);
+    }
+
+    /** Returns options which record statistics of winning candidates into the given statistics, and use them to order and skip candidates. If null, no statistics are collected. */
+    public OptimiseOptions withStats(StrategyStats stats) {
+        return new OptimiseOptions(mergeBlocks, maxMergeRun, effort, timeLimitMillis, maxCandidates, stats);
+    }
+
+    /** Starts the time limit and candidate budget of these options. The budget can be shared between several streams. */
+    public Budget startBudget() {
+        return new Budget(timeLimitMillis == UNLIMITED ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis), timeLimitMillis != UNLIMITED, maxCandidates == UNLIMITED ? null : new AtomicLong(maxCandidates), stats, null, new LongAdder(), new LongAdder());
+    }
+
+    /**
+     * The remaining time and candidates of a started optimisation, and the statistics collected by it.
+     * Also counts the candidates which were tried, and the candidates which were pruned without being created.
+     */
+    public static final class Budget {
+        /** An unlimited budget, which counts the candidates of every optimisation using it */
+        public static final Budget UNLIMITED = new Budget(0, false, null, null, null, new LongAdder(), new LongAdder());
+
+        private final long deadlineNanos;
+        private final boolean hasDeadline;
+        private final AtomicLong candidatesLeft;
+        private final StrategyStats stats;
+        private final StrategyStats.Snapshot snapshot;
+        private final LongAdder tried;
+        private final LongAdder pruned;
+
+        private Budget(long deadlineNanos, boolean hasDeadline, AtomicLong candidatesLeft, StrategyStats stats, StrategyStats.Snapshot snapshot, LongAdder tried, LongAdder pruned) {
+            this.deadlineNanos = deadlineNanos;
+            this.hasDeadline = hasDeadline;
+            this.candidatesLeft = candidatesLeft;
+            this.stats = stats;
+            this.snapshot = snapshot;
+            this.tried = tried;
+            this.pruned = pruned;
+        }
+
+        /** Returns the statistics of this optimisation, or null if none are collected */
+        StrategyStats getStats() {
+            return stats;
+        }
+
+        /** Returns the statistics which steps are skipped and ordered by, or null if steps are never skipped or reordered */
+        StrategyStats.Snapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /** Returns a budget sharing the time and candidates of this budget, which skips and orders steps by the statistics as they are now */
+        Budget withSnapshot() {
+            return stats == null ? this : new Budget(deadlineNanos, hasDeadline, candidatesLeft, stats, stats.snapshot(), tried, pruned);
+        }
+
+        /** Returns the amount of candidates tried so far, including blocks reparsed by {@link Effort#EXHAUSTIVE} */
+        public long getCandidatesTried() {
+            return tried.sum();
+        }
+
+        /** Returns the amount of candidates pruned so far, which were skipped because they couldn't be smaller than the best candidate */
+        public long getCandidatesPruned() {
+            return pruned.sum();
+        }
+
+        void countPruned(int candidates) {
+            pruned.add(candidates);
+        }
+
+        /** Returns true if the time limit has passed, or all candidates have been used */
+        public boolean isExhausted() {
+            return (hasDeadline && ((System.nanoTime() - deadlineNanos) >= 0)) || ((candidatesLeft != null) && (candidatesLeft.get() <= 0));
+        }
+
+        /** Uses a candidate from the budget, returns false if the budget is exhausted */
+        boolean useCandidate() {
+            if (hasDeadline && ((System.nanoTime() - deadlineNanos) >= 0)) {
+                return false;
+            }
+
+            if ((candidatesLeft != null) && (candidatesLeft.getAndDecrement() <= 0)) {
+                return false;
+            }
+
+            tried.increment();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.NeRdTheNed.deft4j.deflate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.NeRdTheNed.deft4j.util.Pair;
+
+/**
+ * Counts how often each strategy for creating candidate blocks wins a block search, and how many bits it saved.
+ * A strategy is any step of the search, and a win is credited to the winning candidate and every step which created it.
+ * Only searches whose result is used by the optimisation are counted.
+ * Steps with more wins are run first, so the smallest candidates are found earlier, which allows pruning more candidates.
+ * Below {@link OptimiseOptions.Effort#EXHAUSTIVE}, steps which rarely win are only sampled occasionally, and skipped otherwise.
+ * Both decisions are made from a {@link Snapshot} taken when each stream starts being optimised.
+ * Statistics can be shared between optimisation runs by passing them to {@link OptimiseOptions#withStats(StrategyStats)},
+ * and persisted as a profile with {@link #write(OutputStream)} and {@link #read(InputStream)}.
+ */
+public final class StrategyStats {
+    /** Amount of runs a step needs before it can be skipped */
+    private static final long MIN_RUNS_TO_SKIP = 32;
+    /** Steps which win less than once in this many runs are rarely winning */
+    private static final long RARE_WIN_RUNS = 100;
+    /** Rarely winning steps are still run for about one in this many blocks, so they can start winning again */
+    private static final long SAMPLE_INTERVAL = 16;
+
+    private static final String PROFILE_SEPARATOR = "\t";
+
+    private static final class Entry {
+        final AtomicLong runs = new AtomicLong();
+        final AtomicLong wins = new AtomicLong();
+        final AtomicLong bitsSaved = new AtomicLong();
+    }
+
+    private final Map<CandidateName, Entry> entries = new ConcurrentHashMap<>();
+
+    private Entry getEntry(CandidateName name) {
+        return entries.computeIfAbsent(name, k -> new Entry());
+    }
+
+    /** Credits a win to the winning candidate and every step which created it */
+    void recordWin(CandidateName winner, long bitsSaved) {
+        for (CandidateName name = winner; !name.isRoot(); name = name.getParent()) {
+            final Entry entry = getEntry(name);
+            entry.wins.incrementAndGet();
+            entry.bitsSaved.addAndGet(bitsSaved);
+        }
+    }
+
+    /** Counts a run of a step */
+    void recordRun(CandidateName step) {
+        getEntry(step).runs.incrementAndGet();
+    }
+
+    /** Returns a copy of the runs and wins of each step as they are now */
+    Snapshot snapshot() {
+        final Map<CandidateName, Snapshot.Counts> counts = new HashMap<>();
+
+        for (final Map.Entry<CandidateName, Entry> entry : entries.entrySet()) {
+            counts.put(entry.getKey(), new Snapshot.Counts(entry.getValue().runs.get(), entry.getValue().wins.get()));
+        }
+
+        return new Snapshot(counts);
+    }
+
+    /**
+     * The runs and wins of each step when an optimisation of a stream started.
+     * Steps are skipped and ordered from the snapshot rather than from the live statistics,
+     * so searches running at the same time can't change each other's results.
+     */
+    static final class Snapshot {
+        private static final class Counts {
+            final long runs;
+            final long wins;
+
+            Counts(long runs, long wins) {
+                this.runs = runs;
+                this.wins = wins;
+            }
+        }
+
+        private final Map<CandidateName, Counts> counts;
+
+        private Snapshot(Map<CandidateName, Counts> counts) {
+            this.counts = counts;
+        }
+
+        long getWins(CandidateName name) {
+            final Counts entry = counts.get(name);
+            return entry == null ? 0 : entry.wins;
+        }
+
+        /**
+         * Returns true if the step rarely wins, and isn't sampled in the search of the block at the given position.
+         * Which blocks sample a step only depends on their position and the step, so the same stream is always optimised the same way.
+         */
+        boolean skipRun(CandidateName step, long position) {
+            final Counts entry = counts.get(step);
+            return (entry != null) && (entry.runs >= MIN_RUNS_TO_SKIP) && ((entry.wins * RARE_WIN_RUNS) < entry.runs) && (Math.floorMod(position + step.hashCode(), SAMPLE_INTERVAL) != 0);
+        }
+    }
+
+    /** Reads statistics written by {@link #write(OutputStream)} */
+    public static StrategyStats read(InputStream is) throws IOException {
+        final StrategyStats stats = new StrategyStats();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            final String[] fields = line.split(PROFILE_SEPARATOR, 4);
+
+            if (fields.length != 4) {
+                throw new IOException("Invalid strategy statistics line " + line);
+            }
+
+            final Entry entry = stats.getEntry(CandidateName.fromPath(fields[3]));
+
+            try {
+                entry.runs.addAndGet(Long.parseLong(fields[0]));
+                entry.wins.addAndGet(Long.parseLong(fields[1]));
+                entry.bitsSaved.addAndGet(Long.parseLong(fields[2]));
+            } catch (final NumberFormatException e) {
+                throw new IOException("Invalid strategy statistics line " + line, e);
+            }
+        }
+
+        return stats;
+    }
+
+    /** Writes the statistics as a profile, with one tab separated line of runs, wins, bits saved, and step path for each step */
+    public void write(OutputStream os) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+
+        for (final Pair<CandidateName, Entry> entry : getSortedEntries()) {
+            writer.write(entry.v.runs.get() + PROFILE_SEPARATOR + entry.v.wins.get() + PROFILE_SEPARATOR + entry.v.bitsSaved.get() + PROFILE_SEPARATOR + entry.k.toPath() + "\n");
+        }
+
+        writer.flush();
+    }
+
+    /** Returns a snapshot of every entry, sorted by most wins, then by most bits saved, then by path */
+    private List<Pair<CandidateName, Entry>> getSortedEntries() {
+        final List<Pair<CandidateName, Entry>> sorted = new ArrayList<>();
+
+        for (final Map.Entry<CandidateName, Entry> entry : entries.entrySet()) {
+            final Entry snapshot = new Entry();
+            snapshot.runs.set(entry.getValue().runs.get());
+            snapshot.wins.set(entry.getValue().wins.get());
+            snapshot.bitsSaved.set(entry.getValue().bitsSaved.get());
+            sorted.add(new Pair<>(entry.getKey(), snapshot));
+        }
+
+        sorted.sort((a, b) -> {
+            final int compareWins = Long.compare(b.v.wins.get(), a.v.wins.get());
+
+            if (compareWins != 0) {
+                return compareWins;
+            }
+
+            final int compareSaved = Long.compare(b.v.bitsSaved.get(), a.v.bitsSaved.get());
+            return compareSaved != 0 ? compareSaved : a.k.toPath().compareTo(b.k.toPath());
+        });
+        return sorted;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        for (final Pair<CandidateName, Entry> entry : getSortedEntries()) {
+            if (entry.v.wins.get() > 0) {
+                builder.append(entry.k).append(": ").append(entry.v.wins.get()).append(" wins, ").append(entry.v.bitsSaved.get()).append(" bits saved, ").append(entry.v.runs.get()).append(" runs\n");
+            }
+        }
+
+        return builder.toString();
+    }
+}
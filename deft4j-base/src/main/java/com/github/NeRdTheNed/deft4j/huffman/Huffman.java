@@ -1,16 +1,10 @@
 package com.github.NeRdTheNed.deft4j.huffman;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 import com.github.NeRdTheNed.deft4j.deflate.Constants;
 import com.github.NeRdTheNed.deft4j.io.BitInputStream;
+import com.github.NeRdTheNed.deft4j.util.IntList;
 import com.github.NeRdTheNed.deft4j.util.Util;
 
 /* Based on code by Ridge Shrubsall */
@@ -32,105 +26,77 @@ public class Huffman {
      * @param codeLen The codelength array
      * @return The list of codes
      */
-    private static int[] buildCodes(int[] codeLen) {
+    static int[] buildCodes(int[] codeLen) {
         final int n = codeLen.length;
         final int[] codes = new int[n];
-        // Find used codelengths
-        final Collection<Integer> lengthSet = new TreeSet<>();
+        // Count the number of codes for each codelength
+        final int[] lenCount = new int[Constants.CODELEN_MAX_LIT + 1];
 
-        for (final int j : codeLen) {
-            if (j > 0) {
-                lengthSet.add(j);
+        for (final int len : codeLen) {
+            if (len > 0) {
+                lenCount[len]++;
             }
         }
 
-        // Build the codes
-        int nextCode = 0;
-        int lastShift = 0;
-
-        for (final Integer length : lengthSet) {
-            nextCode <<= length - lastShift;
-            lastShift = length;
+        // Find the first code for each codelength
+        final int[] nextCode = new int[Constants.CODELEN_MAX_LIT + 1];
+        int code = 0;
 
-            for (int i = 0; i < n; i++) {
-                if (codeLen[i] == length) {
-                    codes[i] = nextCode;
-                    nextCode++;
-                }
-            }
+        for (int len = 1; len <= Constants.CODELEN_MAX_LIT; len++) {
+            code = (code + lenCount[len - 1]) << 1;
+            nextCode[len] = code;
         }
 
-        return codes;
-    }
-
-    private static Map<Integer, List<Integer>> buildCodeMap(List<Integer> codes, int[] codeLen) {
-        final int n = codeLen.length;
-        final Map<Integer, List<Integer>> codeMap = new TreeMap<>();
-
-        // Build the codemap
+        // Assign codes in symbol order
         for (int i = 0; i < n; i++) {
             final int len = codeLen[i];
 
             if (len > 0) {
-                List<Integer> codeList = codeMap.get(len);
-
-                if (codeList == null) {
-                    codeList = new ArrayList<>();
-                    codeMap.put(codeLen[i], codeList);
-                }
-
-                codeList.add(codes.get(i));
+                codes[i] = nextCode[len];
+                nextCode[len]++;
             }
         }
 
-        return codeMap;
+        return codes;
     }
 
     public final HuffmanTable table;
 
     /**
-     * The current set of literal codes.
+     * The bit-reversed codes, in the order they're written to a deflate stream.
+     */
+    private final int[] revCodes;
+
+    /**
+     * The lookup tables used for decoding, built when first needed.
      */
-    private final List<Integer> codes;
-    private final Map<Integer, List<Integer>> codeMap;
+    private DecodeTable decodeTable;
 
     public Huffman(HuffmanTable table) {
         this.table = table;
         final int len = this.table.code.length;
-        codes = new ArrayList<>(len);
+        revCodes = new int[len];
 
         for (int i = 0; i < len; i++) {
-            // Janky hack mate!
-            // If this is 0, then it replaces the code 0.
-            int element = -1;
-
-            if (this.table.codeLen[i] > 0) {
-                element = this.table.code[i];
-            }
-
-            codes.add(element);
+            revCodes[i] = Util.rev(this.table.code[i], this.table.codeLen[i]);
         }
-
-        codeMap = buildCodeMap(codes, this.table.codeLen);
     }
 
-    public static Huffman ofRLEPacked(Iterable<Integer> lengths) {
+    public static Huffman ofRLEPacked(IntList lengths) {
         final int[] lenFreq = new int[Constants.MAX_CODELEN_LENS];
-        final Iterator<Integer> iter = lengths.iterator();
+        final int size = lengths.size();
 
-        while (iter.hasNext()) {
-            final int s = iter.next();
+        for (int i = 0; i < size; i++) {
+            final int s = lengths.get(i);
             lenFreq[s]++;
 
             // Skip run-length bits
             if ((s == 16) || (s == 17) || (s == 18)) {
-                iter.next();
+                i++;
             }
         }
 
-        final HuffmanTree tree = new HuffmanTree(lenFreq, 7);
-        final HuffmanTable table = tree.getTable();
-        return new Huffman(table);
+        return ofCodelens(HuffmanTree.getCodeLengths(lenFreq, 7));
     }
 
     public static Huffman ofCodelens(int[] codelens) {
@@ -161,43 +127,158 @@ public class Huffman {
         }
     }
 
+    private static final DecodedSym INVALID_SYM = new DecodedSym(-1, 0, -1);
+
     /**
-     * Read a symbol from the input stream.
-     * @param codes The code list to use
-     * @param codeMap The code map to use
-     * @return The decoded symbol
+     * Lookup tables for decoding symbols.
+     * The primary table is indexed by the next (up to) 9 bits of input.
+     * Codes longer than this are found in secondary tables, which are stored after the primary table.
      */
-    private static DecodedSym readSymbol(List<Integer> codes, Map<Integer, List<Integer>> codeMap, BitInputStream is) throws IOException {
-        int code = 0;
-        int codeLen = 0;
-        int index = -1;
-
-        // Start reading bits
-        do {
-            if (codeLen == 15) {
-                //throw new AssertionError("Couldn't find code " + code + " len " + codeLen);
-                return new DecodedSym(-1, 0, -1);
+    private static final class DecodeTable {
+        /** Maximum amount of bits used to index the primary table */
+        private static final int PRIMARY_BITS = 9;
+
+        /** Entries store the code length (or secondary table bits) in the lowest bits */
+        private static final int LEN_MASK = 0xF;
+        /** Set if an entry points to a secondary table */
+        private static final int LINK = 0x10;
+        /** Entries store the symbol (or secondary table offset) above this shift */
+        private static final int VALUE_SHIFT = 5;
+
+        final int primaryBits;
+        final int[] entries;
+        final DecodedSym[] syms;
+
+        DecodeTable(HuffmanTable table, int[] revCodes) {
+            final int[] codeLen = table.codeLen;
+            final int n = codeLen.length;
+            int maxLen = 0;
+
+            for (final int len : codeLen) {
+                maxLen = Math.max(maxLen, len);
+            }
+
+            primaryBits = Math.max(1, Math.min(PRIMARY_BITS, maxLen));
+            final int primarySize = 1 << primaryBits;
+            final int primaryMask = primarySize - 1;
+            // Find the size of each secondary table
+            final int[] subBits = new int[primarySize];
+
+            for (int i = 0; i < n; i++) {
+                final int len = codeLen[i];
+
+                if (len > primaryBits) {
+                    final int prefix = revCodes[i] & primaryMask;
+                    subBits[prefix] = Math.max(subBits[prefix], len - primaryBits);
+                }
+            }
+
+            int size = primarySize;
+            final int[] subOffset = new int[primarySize];
+
+            for (int i = 0; i < primarySize; i++) {
+                if (subBits[i] > 0) {
+                    subOffset[i] = size;
+                    size += 1 << subBits[i];
+                }
+            }
+
+            entries = new int[size];
+
+            for (int i = 0; i < primarySize; i++) {
+                if (subBits[i] > 0) {
+                    entries[i] = (subOffset[i] << VALUE_SHIFT) | LINK | subBits[i];
+                }
+            }
+
+            syms = new DecodedSym[n];
+
+            // Fill every entry which starts with each code
+            for (int i = 0; i < n; i++) {
+                final int len = codeLen[i];
+
+                if (len == 0) {
+                    continue;
+                }
+
+                syms[i] = new DecodedSym(table.code[i], len, i);
+                final int rev = revCodes[i];
+                final int entry = (i << VALUE_SHIFT) | len;
+
+                if (len <= primaryBits) {
+                    for (int j = rev; j < primarySize; j += 1 << len) {
+                        entries[j] = entry;
+                    }
+                } else {
+                    final int prefix = rev & primaryMask;
+                    final int subSize = 1 << subBits[prefix];
+                    final int offset = subOffset[prefix];
+
+                    for (int j = rev >>> primaryBits; j < subSize; j += 1 << (len - primaryBits)) {
+                        entries[offset + j] = entry;
+                    }
+                }
             }
+        }
 
-            // Read one bit
-            code <<= 1;
-            final int bitRead = (int) is.readBits(1);
-            code |= bitRead;
-            codeLen++;
-            // Check if we have a matching code
-            final List<Integer> codeList = codeMap.get(codeLen);
+        /** Returns the entry for a code starting with the given bits */
+        int lookup(long bits) {
+            final int entry = entries[(int) bits & ((1 << primaryBits) - 1)];
 
-            if (codeList != null) {
-                index = codeList.indexOf(code);
+            if ((entry & LINK) == 0) {
+                return entry;
             }
-        } while (index == -1);
 
-        // Return the index of the code (which equals the symbol value)
-        return new DecodedSym(code, codeLen, codes.indexOf(code));
+            final int sub = (int) (bits >>> primaryBits) & ((1 << (entry & LEN_MASK)) - 1);
+            return entries[(entry >>> VALUE_SHIFT) + sub];
+        }
     }
 
+    private DecodeTable getDecodeTable() {
+        DecodeTable decoder = decodeTable;
+
+        if (decoder == null) {
+            decoder = new DecodeTable(table, revCodes);
+            decodeTable = decoder;
+        }
+
+        return decoder;
+    }
+
+    /**
+     * Read a symbol from the input stream.
+     * Only reads more input when the buffered bits aren't enough to decode a symbol,
+     * so this never reads past the end of the last symbol.
+     * @return The decoded symbol
+     */
     public DecodedSym readSym(BitInputStream is) throws IOException {
-        return readSymbol(codes, codeMap, is);
+        final DecodeTable decoder = getDecodeTable();
+        int buffered = is.fillBits(1);
+
+        while (true) {
+            final int entry = decoder.lookup(is.peekBufferedBits());
+            final int len = entry & DecodeTable.LEN_MASK;
+
+            if (len == 0) {
+                // No matching code
+                return INVALID_SYM;
+            }
+
+            if (len <= buffered) {
+                is.consumeBits(len);
+                return decoder.syms[entry >>> DecodeTable.VALUE_SHIFT];
+            }
+
+            // Code is longer than the buffered bits
+            final int newBuffered = is.fillBits(buffered + 1);
+
+            if (newBuffered <= buffered) {
+                // Reached the end of the input
+                return INVALID_SYM;
+            }
+
+            buffered = newBuffered;
+        }
     }
 
     public int decodeSym(BitInputStream is) throws IOException {
@@ -205,7 +286,7 @@ public class Huffman {
     }
 
     public int getSym(int n) {
-        return Util.rev(table.code[n], table.codeLen[n]);
+        return revCodes[n];
     }
 
     public int getSymLen(int n) {
@@ -1,8 +1,8 @@
 package com.github.NeRdTheNed.deft4j.huffman;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
+import com.github.NeRdTheNed.deft4j.util.IntList;
 import com.github.NeRdTheNed.deft4j.util.Util;
 
 /**
@@ -39,12 +39,97 @@ public class HuffmanTable {
      * @param alt8 If use8, use 5 + 3 instead of 4 + 4
      * @return The packed codelengths
      */
-    public static List<Integer> packCodeLengths(int[] litCodeLen, int[] distCodeLen, boolean ohh, boolean use8, boolean use7, boolean alt8, boolean noRep, boolean noZRep, boolean noZRep2, boolean noRepZeros) {
-        final List<Integer> lengths = new ArrayList<>();
+    public static IntList packCodeLengths(int[] litCodeLen, int[] distCodeLen, boolean ohh, boolean use8, boolean use7, boolean alt8, boolean noRep, boolean noZRep, boolean noZRep2, boolean noRepZeros) {
+        final IntList lengths = new IntList(litCodeLen.length + distCodeLen.length);
         pack(lengths, Util.combine(litCodeLen, distCodeLen), ohh, use8, use7, alt8, noRep, noZRep, noZRep2, noRepZeros);
         return lengths;
     }
 
+    /**
+     * Pack the given codelength arrays with the smallest encoded size,
+     * by finding the shortest path through the codelengths, where each RLE symbol is an edge.
+     * @param litCodeLen The literal codelengths
+     * @param distCodeLen The distance codelengths
+     * @param symSizes The encoded size of each codelength symbol, not including extra bits
+     * @return The packed codelengths
+     */
+    public static IntList packCodeLengthsOptimal(int[] litCodeLen, int[] distCodeLen, int[] symSizes) {
+        final int[] codeLen = Util.combine(litCodeLen, distCodeLen);
+        final int n = codeLen.length;
+        // Amount of codelengths starting at each position which repeat the previous length / are zero
+        final int[] repeats = new int[n + 1];
+        final int[] zeros = new int[n + 1];
+
+        for (int i = n - 1; i >= 0; i--) {
+            zeros[i] = codeLen[i] == 0 ? zeros[i + 1] + 1 : 0;
+            repeats[i] = (i > 0) && (codeLen[i] == codeLen[i - 1]) ? repeats[i + 1] + 1 : 0;
+        }
+
+        final long[] cost = new long[n + 1];
+        final int[] stepSym = new int[n + 1];
+        final int[] stepLength = new int[n + 1];
+        Arrays.fill(cost, Long.MAX_VALUE);
+        cost[0] = 0;
+
+        for (int i = 0; i < n; i++) {
+            final long base = cost[i];
+            relax(cost, stepSym, stepLength, i, 1, codeLen[i], base + symSizes[codeLen[i]]);
+
+            for (int j = 3; j <= Math.min(6, repeats[i]); j++) {
+                relax(cost, stepSym, stepLength, i, j, 16, base + symSizes[16] + 2);
+            }
+
+            for (int j = 3; j <= Math.min(10, zeros[i]); j++) {
+                relax(cost, stepSym, stepLength, i, j, 17, base + symSizes[17] + 3);
+            }
+
+            for (int j = 11; j <= Math.min(138, zeros[i]); j++) {
+                relax(cost, stepSym, stepLength, i, j, 18, base + symSizes[18] + 7);
+            }
+        }
+
+        // Walk back through the shortest path
+        final IntList steps = new IntList();
+
+        for (int i = n; i > 0; i -= stepLength[i]) {
+            steps.add(i);
+        }
+
+        final IntList lengths = new IntList(n);
+
+        for (int s = steps.size() - 1; s >= 0; s--) {
+            final int end = steps.get(s);
+            final int sym = stepSym[end];
+            lengths.add(sym);
+
+            switch (sym) {
+            case 16:
+            case 17:
+                lengths.add(stepLength[end] - 3);
+                break;
+
+            case 18:
+                lengths.add(stepLength[end] - 11);
+                break;
+
+            default:
+                break;
+            }
+        }
+
+        return lengths;
+    }
+
+    private static void relax(long[] cost, int[] stepSym, int[] stepLength, int start, int length, int sym, long newCost) {
+        final int end = start + length;
+
+        if (newCost < cost[end]) {
+            cost[end] = newCost;
+            stepSym[end] = sym;
+            stepLength[end] = length;
+        }
+    }
+
     // TODO Try other combinations (5 & 3 etc)
     private static final int FIRST_8 = 4;
     private static final int SECOND_8 = 4;
@@ -67,7 +152,7 @@ public class HuffmanTable {
      * @param use7 Use 4 + 3 instead of 6 + single
      * @param alt8 If use8, use 5 + 3 instead of 4 + 4
      */
-    private static void pack(List<Integer> lengths, int[] codeLen, boolean ohh, boolean use8, boolean use7, boolean alt8, boolean noRep, boolean noZRep, boolean noZRep2, boolean noRepZeros) {
+    private static void pack(IntList lengths, int[] codeLen, boolean ohh, boolean use8, boolean use7, boolean alt8, boolean noRep, boolean noZRep, boolean noZRep2, boolean noRepZeros) {
         final int n = codeLen.length;
         // Perform a run-length encoding
         int last = codeLen[0];                         // Get the first length value
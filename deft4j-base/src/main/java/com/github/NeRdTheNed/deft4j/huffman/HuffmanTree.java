@@ -1,32 +1,55 @@
 package com.github.NeRdTheNed.deft4j.huffman;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.PriorityQueue;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 /**
- * Implements a Huffman tree.
- * @author Ridge Shrubsall (21112211)
+ * Implements optimal length-limited Huffman codes, using the package-merge algorithm.
+ * Only primitive arrays are used, and the code lengths are calculated directly without building a tree.
+ * Working arrays are kept per thread and reused, so only the returned code lengths are allocated for each call.
  */
 public class HuffmanTree {
+    /** Working arrays for {@link #getCodeLengths(int[], int)}, grown as needed */
+    private static final class Scratch {
+        int[] leafSym = new int[0];
+        long[] leafWeight = new long[0];
+        long[] prevWeight = new long[0];
+        long[] curWeight = new long[0];
+        /** Whether each item of each level's list is a leaf (true) or a package (false), with one row of maxItems per level */
+        boolean[] isLeaf = new boolean[0];
+        int[] listSize = new int[0];
+
+        void ensureCapacity(int leaves, int maxItems, int limit) {
+            if (leafSym.length < leaves) {
+                leafSym = new int[leaves];
+                leafWeight = new long[leaves];
+            }
+
+            if (prevWeight.length < maxItems) {
+                prevWeight = new long[maxItems];
+                curWeight = new long[maxItems];
+            }
+
+            if (isLeaf.length < (maxItems * limit)) {
+                isLeaf = new boolean[maxItems * limit];
+            }
+
+            if (listSize.length < limit) {
+                listSize = new int[limit];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
     /**
      * The total number of symbols.
      */
     private final int numSymbols;
 
     /**
-     * A map of the leaves grouped by depth.
+     * The codelength of each symbol.
      */
-    private final Map<Integer, List<LeafNode>> depthMap;
-
-    /**
-     * The maximum depth of the tree.
-     */
-    private int maxDepth;
+    private final int[] codeLen;
 
     /**
      * Construct a Huffman tree from the given frequencies.
@@ -35,249 +58,163 @@ public class HuffmanTree {
      */
     public HuffmanTree(int[] freq, int limit) {
         numSymbols = freq.length;
-        depthMap = new TreeMap<>();
-        maxDepth = 0;
-        // Create leaf nodes
-        final PriorityQueue<Node> queue = new PriorityQueue<>();
+        codeLen = getCodeLengths(freq, limit);
+    }
 
-        for (int i = 0; i < numSymbols; i++) {
+    /**
+     * Calculate optimal codelengths for the given frequencies, with no codelength over the limit.
+     * Symbols with a frequency of zero aren't assigned a code.
+     * If fewer than two symbols have a non-zero frequency, the first unused symbols are given a frequency of one,
+     * so that the resulting code always has at least two codes (the second of which may be outside the alphabet).
+     * @param freq The symbol frequencies
+     * @param limit The codelength limit
+     * @return The codelengths
+     */
+    public static int[] getCodeLengths(int[] freq, int limit) {
+        final int n = freq.length;
+        final int[] lengths = new int[n];
+        final Scratch scratch = SCRATCH.get();
+        // Every symbol, or two placeholders
+        scratch.ensureCapacity(Math.max(n, 2), 0, 0);
+        // Sorted leaves. A symbol of n is a placeholder outside the alphabet.
+        final int[] leafSym = scratch.leafSym;
+        final long[] leafWeight = scratch.leafWeight;
+        int leaves = 0;
+
+        for (int i = 0; i < n; i++) {
             if (freq[i] > 0) {
-                queue.add(new LeafNode(i, freq[i]));
+                leafSym[leaves] = i;
+                leafWeight[leaves] = freq[i];
+                leaves++;
             }
         }
 
         // Ensure that the tree has at least two leaves
         int index = 0;
 
-        while (queue.size() < 2) {
-            if ((index >= numSymbols) || (freq[index] == 0)) {
-                queue.add(new LeafNode(index, 1));
+        while (leaves < 2) {
+            if ((index >= n) || (freq[index] == 0)) {
+                leafSym[leaves] = Math.min(index, n);
+                leafWeight[leaves] = 1;
+                leaves++;
             }
 
             index++;
         }
 
-        // Build the tree
-        final int n = queue.size();
+        sortLeaves(leafSym, leafWeight, leaves);
 
-        for (int i = 0; i < (n - 1); i++) {
-            final Node left = queue.remove();
-            final Node right = queue.remove();
-            queue.add(new InternalNode(left, right));
+        if ((1L << limit) < leaves) {
+            throw new IllegalArgumentException("Can't fit " + leaves + " symbols in codes of length " + limit);
         }
 
-        // The root node
-        final Node root = queue.remove();
-        // Build the depth map
-        traverse(root);
-
-        // Balance the tree within limits
-        while (maxDepth > limit) {
-            final LeafNode leafA = depthMap.get(maxDepth).get(0);                // Pick a leaf over the limit
-            final InternalNode parent1 = (InternalNode) leafA.parent;            // Go up one node
-            final LeafNode leafB;                                                // Examine the opposite leaf
-
-            if (leafA.side == 0) {
-                leafB = (LeafNode) parent1.right;
-            } else {
-                leafB = (LeafNode) parent1.left;
-            }
-
-            final InternalNode parent2 = (InternalNode) parent1.parent;          // Move the opposite leaf upwards,
+        // Each list holds at most 2 * leaves - 2 items
+        final int maxItems = (2 * leaves) - 2;
+        scratch.ensureCapacity(leaves, maxItems, limit);
+        final boolean[] isLeaf = scratch.isLeaf;
+        final int[] listSize = scratch.listSize;
+        long[] prevWeight = scratch.prevWeight;
+        long[] curWeight = scratch.curWeight;
+        // The first list is just the leaves
+        final int firstSize = Math.min(leaves, maxItems);
+        System.arraycopy(leafWeight, 0, prevWeight, 0, firstSize);
+        Arrays.fill(isLeaf, 0, firstSize, true);
+        listSize[0] = firstSize;
+
+        for (int level = 1; level < limit; level++) {
+            final int packages = listSize[level - 1] / 2;
+            final int levelStart = level * maxItems;
+            int leafPos = 0;
+            int packagePos = 0;
+            int size = 0;
+
+            // Merge the leaves with packages of pairs from the previous list
+            while ((size < maxItems) && ((leafPos < leaves) || (packagePos < packages))) {
+                final long packageWeight = packagePos < packages ? prevWeight[2 * packagePos] + prevWeight[(2 * packagePos) + 1] : Long.MAX_VALUE;
+
+                if ((leafPos < leaves) && (leafWeight[leafPos] <= packageWeight)) {
+                    curWeight[size] = leafWeight[leafPos];
+                    isLeaf[levelStart + size] = true;
+                    leafPos++;
+                } else {
+                    curWeight[size] = packageWeight;
+                    isLeaf[levelStart + size] = false;
+                    packagePos++;
+                }
 
-            if (parent1.side == 0) {                                       // removing the current leaf
-                parent2.left = leafB;
-                parent2.left.parent = parent2;
-                parent2.left.side = 0;
-            } else {
-                parent2.right = leafB;
-                parent2.right.parent = parent2;
-                parent2.right.side = 1;
+                size++;
             }
 
-            boolean moved = false;
-
-            for (int i = maxDepth - 2; i >= 1; i--) {
-                final List<LeafNode> leaves = depthMap.get(i);
+            listSize[level] = size;
+            final long[] swap = prevWeight;
+            prevWeight = curWeight;
+            curWeight = swap;
+        }
 
-                if (leaves != null) {
-                    final LeafNode leafC = leaves.get(0);                        // Pick a new leaf under the limit
-                    final InternalNode parent3 = (InternalNode) leafC.parent;    // Move the new leaf downwards,
+        // Select the first 2 * leaves - 2 items of the last list, and follow the selected packages down each level.
+        // Leaves are merged in sorted order, so each level adds one to the length of its first few leaves.
+        int selected = maxItems;
 
-                    if (leafC.side == 0) {                                 // reinserting the old leaf
-                        parent3.left = new InternalNode(leafA, leafC);
-                        parent3.left.parent = parent3;
-                        parent3.left.side = 0;
-                    } else {
-                        parent3.right = new InternalNode(leafA, leafC);
-                        parent3.right.parent = parent3;
-                        parent3.right.side = 1;
-                    }
+        for (int level = limit - 1; level >= 0; level--) {
+            final int levelStart = level * maxItems;
+            // Items past the end of the list are left over from previous calls
+            final int selectedItems = Math.min(selected, listSize[level]);
+            int selectedLeaves = 0;
 
-                    moved = true;
-                    break;
+            for (int i = 0; i < selectedItems; i++) {
+                if (isLeaf[levelStart + i]) {
+                    selectedLeaves++;
                 }
             }
 
-            if (!moved) {                                                  // Check that the leaf was reinserted
-                throw new AssertionError("Can't balance the tree");
-            }
+            for (int i = 0; i < selectedLeaves; i++) {
+                final int sym = leafSym[i];
 
-            traverse(root);                                                // Rebuild depth map
-        }
-    }
-
-    /**
-     * Traverse the tree from the root node.
-     * @param root The root node
-     */
-    private void traverse(Node root) {
-        depthMap.clear();
-        maxDepth = 0;
-        traverse(root, 0);
-    }
+                if (sym < n) {
+                    lengths[sym]++;
+                }
+            }
 
-    /**
-     * Traverse the tree from the current node.
-     * @param node The current node
-     * @param depth The current depth
-     */
-    private void traverse(Node node, int depth) {
-        // Find the maximum depth
-        if (depth > maxDepth) {
-            maxDepth = depth;
+            selected = 2 * (selected - selectedLeaves);
         }
 
-        // Traverse the tree, adding leaves to the depth map
-        if (node instanceof InternalNode) {
-            traverse(((InternalNode) node).left, depth + 1);
-            traverse(((InternalNode) node).right, depth + 1);
-        } else if (node instanceof LeafNode) {
-            depthMap.computeIfAbsent(depth, k -> new ArrayList<>()).add((LeafNode) node);
-        }
+        return lengths;
     }
 
-    /**
-     * Convert the current tree into a table of canonical codes.
-     * @return A Huffman table of the current tree
-     */
-    public HuffmanTable getTable() {
-        final HuffmanTable table = new HuffmanTable(numSymbols);
-        final int[] code = table.code;
-        final int[] codelen = table.codeLen;
-        // Go through each level of the tree, assigning minimal codes for each leaf
-        int nextCode = 0;
-        int lastShift = 0;
-
-        for (final Entry<Integer, List<LeafNode>> entry : depthMap.entrySet()) {
-            final Integer length = entry.getKey();
-            nextCode <<= length - lastShift;
-            lastShift = length;
-            // Sort leaves by value
-            final List<LeafNode> leaves = entry.getValue();
-            leaves.sort(Comparator.comparingInt(n -> n.value));
-
-            // Assign codes to leaves
-            for (final LeafNode leaf : leaves) {
-                if (leaf.value < numSymbols) {
-                    code[leaf.value] = nextCode;
-                    codelen[leaf.value] = length;
-                }
-
-                nextCode++;
+    /** Insertion sort leaves by weight, then by symbol */
+    private static void sortLeaves(int[] leafSym, long[] leafWeight, int leaves) {
+        for (int i = 1; i < leaves; i++) {
+            final int sym = leafSym[i];
+            final long weight = leafWeight[i];
+            int j = i - 1;
+
+            while ((j >= 0) && ((leafWeight[j] > weight) || ((leafWeight[j] == weight) && (leafSym[j] > sym)))) {
+                leafSym[j + 1] = leafSym[j];
+                leafWeight[j + 1] = leafWeight[j];
+                j--;
             }
-        }
 
-        return table;
-    }
-
-    /**
-     * A node.
-     */
-    abstract static class Node implements Comparable<Node> {
-        /**
-         * The parent of this node.
-         */
-        Node parent;
-
-        /**
-         * The side of this node (with respect to the parent).
-         */
-        int side;
-
-        /**
-         * The weight of this node.
-         */
-        int weight;
-
-        /**
-         * Compare this node with another node.
-         * @param node The node to be compared
-         * @return The difference in weights
-         */
-        @Override
-        public int compareTo(Node node) {
-            return weight - node.weight;
+            leafSym[j + 1] = sym;
+            leafWeight[j + 1] = weight;
         }
     }
 
     /**
-     * An internal node.
+     * Returns the codelength of each symbol.
      */
-    static class InternalNode extends Node {
-        /**
-         * The left node.
-         */
-        Node left;
-
-        /**
-         * The right node.
-         */
-        Node right;
-
-        /**
-         * Create a new internal node.
-         * @param left The left node
-         * @param right The right node
-         */
-        InternalNode(Node left, Node right) {
-            left.parent = this;
-            left.side = 0;
-            this.left = left;
-            right.parent = this;
-            right.side = 1;
-            this.right = right;
-            weight = left.weight + right.weight;
-        }
-
-        @Override
-        public String toString() {
-            return "[" + left.toString() + ", " + right.toString() + "]";
-        }
+    public int[] getCodeLengths() {
+        return codeLen;
     }
 
     /**
-     * A leaf node.
+     * Convert the codelengths into a table of canonical codes.
+     * @return A Huffman table of the current tree
      */
-    static class LeafNode extends Node {
-        /**
-         * The value of this node.
-         */
-        final int value;
-
-        /**
-         * Create a new leaf node.
-         * @param value The value
-         * @param weight The weight
-         */
-        LeafNode(int value, int weight) {
-            this.value = value;
-            this.weight = weight;
-        }
-
-        @Override
-        public String toString() {
-            return Integer.toString(value);
-        }
+    public HuffmanTable getTable() {
+        final HuffmanTable table = new HuffmanTable(numSymbols);
+        System.arraycopy(codeLen, 0, table.codeLen, 0, numSymbols);
+        final int[] codes = Huffman.buildCodes(codeLen);
+        System.arraycopy(codes, 0, table.code, 0, numSymbols);
+        return table;
     }
 }
@@ -4,96 +4,313 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * Reads LSB-first bit sequences from either a byte array or an InputStream.
+ * Bits are held in a 64-bit buffer, which is refilled several bytes at a time.
+ *
+ * When reading from an InputStream which supports mark / reset, data is read in chunks,
+ * and any bytes which were buffered but not consumed can be returned to the stream with {@link #returnUnreadBytes()}.
+ * Other InputStreams are read one byte at a time, and never read past the last byte which is needed.
+ */
 public class BitInputStream implements Closeable {
     private static final int ALIGN = 8;
 
+    /** Maximum amount of bits which can be peeked or read at once */
+    public static final int MAX_PEEK = 56;
+
+    private static final int CHUNK_SIZE = 8192;
+
     private final InputStream is;
+    private final boolean chunked;
+
+    private byte[] buf;
+    private int bufPos;
+    private int bufLimit;
 
-    private long pos;
+    /** Bytes consumed from the source before the current chunk */
+    private long chunkStart;
 
-    private long accum;
-    private int bitpos;
+    private long bitBuf;
+    private int bitCount;
+    /** Amount of zero bits which were added past the end of the input */
+    private int padBits;
 
     private boolean eof;
 
+    public BitInputStream(byte[] data, int offset, int length) {
+        is = null;
+        chunked = false;
+        buf = data;
+        bufPos = offset;
+        bufLimit = offset + length;
+        chunkStart = -offset;
+    }
+
+    public BitInputStream(byte[] data) {
+        this(data, 0, data.length);
+    }
+
     public BitInputStream(InputStream is) {
         this.is = is;
+        chunked = is.markSupported();
+        buf = new byte[chunked ? CHUNK_SIZE : 0];
     }
 
-    private long read8AssumeAligned() throws IOException {
-        if (eof) {
-            return -1;
+    /** Reads the next chunk from the InputStream into the byte buffer. Returns false if no more bytes are available. */
+    private boolean fillChunk() throws IOException {
+        if ((is == null) || !chunked) {
+            return false;
         }
 
-        pos++;
-        final long toReturn = is.read();
+        // Return any whole bytes in the bit buffer, so that all unread bytes are in the current chunk
+        returnUnreadBytes();
+        is.mark(CHUNK_SIZE);
+        final int read = is.read(buf, 0, CHUNK_SIZE);
 
-        if (toReturn == -1) {
-            eof = true;
-            return -1;
+        if (read <= 0) {
+            return false;
         }
 
-        return toReturn;
+        bufPos = 0;
+        bufLimit = read;
+        return true;
     }
 
-    private long readBit() throws IOException {
-        if (eof) {
-            return -1;
+    /** Adds one byte to the bit buffer, or zero bits if there is no more input. */
+    private void refillByte() throws IOException {
+        int read = -1;
+
+        if (bufPos < bufLimit) {
+            read = buf[bufPos++] & 0xFF;
+        } else if (chunked) {
+            if (fillChunk()) {
+                read = buf[bufPos++] & 0xFF;
+            }
+        } else if (is != null) {
+            read = is.read();
+
+            if (read != -1) {
+                chunkStart++;
+            }
         }
 
-        if (bitpos == 0) {
-            bitpos = ALIGN;
-            accum = read8AssumeAligned();
+        if (read == -1) {
+            read = 0;
+            padBits += ALIGN;
+        }
 
-            if (eof) {
-                return -1;
+        bitBuf |= (long) read << bitCount;
+        bitCount += ALIGN;
+    }
+
+    /** Ensures that at least n bits are in the bit buffer, padding with zeros past the end of the input. */
+    private void refill(int n) throws IOException {
+        assert n <= MAX_PEEK;
+
+        if (!chunked && (is != null)) {
+            // Only read the bytes which are needed
+            while (bitCount < n) {
+                refillByte();
+            }
+
+            return;
+        }
+
+        if ((bufLimit - bufPos) >= 8) {
+            // Fast path, read as many whole bytes as fit in the bit buffer
+            final int bytes = (63 - bitCount) >>> 3;
+            long word = 0;
+
+            for (int i = bytes - 1; i >= 0; i--) {
+                word = (word << 8) | (buf[bufPos + i] & 0xFFL);
             }
+
+            bufPos += bytes;
+            bitBuf |= word << bitCount;
+            bitCount += bytes << 3;
+            return;
+        }
+
+        while (bitCount < n) {
+            refillByte();
+        }
+    }
+
+    /** Returns the next n bits without consuming them. Bits past the end of the input are read as zero. */
+    public long peekBits(int n) throws IOException {
+        if (bitCount < n) {
+            refill(n);
+        }
+
+        return bitBuf & ((1L << n) - 1L);
+    }
+
+    /** Consumes n bits which have previously been peeked. */
+    public void consumeBits(int n) {
+        assert n <= bitCount;
+        bitBuf >>>= n;
+        bitCount -= n;
+
+        if (bitCount < padBits) {
+            eof = true;
+            padBits = bitCount;
+        }
+    }
+
+    /** Returns the amount of bits which are buffered and can be peeked without reading from the input. */
+    public int getBufferedBits() {
+        return bitCount - padBits;
+    }
+
+    /**
+     * Buffers at least n bits if possible, and returns the amount of buffered bits from the input.
+     * InputStreams without mark support are only read while fewer than n bits are buffered,
+     * so decoders which don't know how many bits they need should ask for one more bit at a time.
+     */
+    public int fillBits(int n) throws IOException {
+        if (bitCount < n) {
+            refill(n);
         }
 
-        final long returnVal = accum & 1;
-        accum >>>= 1;
-        bitpos--;
-        return returnVal;
+        return bitCount - padBits;
     }
 
+    /** Returns all buffered bits without consuming them. Bits above the buffered bits are zero. */
+    public long peekBufferedBits() {
+        return bitBuf;
+    }
+
+    /** Reads n bits, or returns -1 if the end of the input was reached */
     public long readBits(int count) throws IOException {
         if (eof) {
             return -1;
         }
 
-        long read = 0;
-        long readAmount = 0;
+        if (count > MAX_PEEK) {
+            final long low = readBits(MAX_PEEK);
+            final long high = readBits(count - MAX_PEEK);
+            return eof ? -1 : (low | (high << MAX_PEEK));
+        }
 
-        while (count > 0) {
-            final boolean readAlgined = (count >= ALIGN) && (bitpos == 0);
-            final long thisRead = readAlgined ? read8AssumeAligned() : readBit();
-            final long thisReadAmount = readAlgined ? ALIGN : 1;
+        final long read = peekBits(count);
+        consumeBits(count);
+        return eof ? -1 : read;
+    }
+
+    public void readToByteAligned() throws IOException {
+        final int partial = bitCount & (ALIGN - 1);
 
-            if (eof) {
+        if (partial != 0) {
+            readBits(partial);
+        }
+    }
+
+    /**
+     * Reads len bytes into the given array. The stream must be byte aligned.
+     * Returns the amount of bytes read, or -1 if the end of the input was reached first.
+     */
+    public int readBytes(byte[] bytes, int off, int len) throws IOException {
+        assert (bitCount & (ALIGN - 1)) == 0;
+
+        if (eof) {
+            return -1;
+        }
+
+        int read = 0;
+
+        // Drain whole bytes from the bit buffer
+        while ((read < len) && (bitCount > 0)) {
+            final long b = readBits(ALIGN);
+
+            if (b == -1) {
                 return -1;
             }
 
-            read |= thisRead << readAmount;
-            readAmount += thisReadAmount;
-            count -= thisReadAmount;
+            bytes[off + read] = (byte) b;
+            read++;
         }
 
-        return read;
-    }
+        while (read < len) {
+            if (bufPos >= bufLimit) {
+                if (!chunked && (is != null)) {
+                    final int direct = is.read(bytes, off + read, len - read);
 
-    public void readToByteAligned() throws IOException {
-        if (bitpos != 0) {
-            readBits(bitpos);
+                    if (direct <= 0) {
+                        eof = true;
+                        return -1;
+                    }
+
+                    chunkStart += direct;
+                    read += direct;
+                    continue;
+                }
+
+                if (!fillChunk()) {
+                    eof = true;
+                    return -1;
+                }
+            }
+
+            final int toCopy = Math.min(len - read, bufLimit - bufPos);
+            System.arraycopy(buf, bufPos, bytes, off + read, toCopy);
+            bufPos += toCopy;
+            read += toCopy;
         }
+
+        return read;
     }
 
+    /** Returns the amount of bytes read from the input, including partially read bytes */
     public long getBytesRead() {
-        return pos;
+        return (chunkStart + bufPos) - ((bitCount - padBits) >>> 3);
+    }
+
+    /**
+     * Returns any buffered but unread whole bytes to the InputStream, if it supports mark / reset.
+     * After calling this, the InputStream is positioned directly after the last partially read byte.
+     */
+    public void returnUnreadBytes() throws IOException {
+        if ((is == null) || !chunked) {
+            return;
+        }
+
+        // Padding is always above the real bits
+        bitCount -= padBits;
+        padBits = 0;
+        final int wholeBytes = bitCount >>> 3;
+        final int consumed = bufPos - wholeBytes;
+        assert consumed >= 0;
+
+        if (bufLimit > 0) {
+            is.reset();
+
+            if (consumed > 0) {
+                long toSkip = consumed;
+
+                while (toSkip > 0) {
+                    final long skipped = is.skip(toSkip);
+
+                    if (skipped <= 0) {
+                        throw new IOException("Could not return unread bytes to InputStream");
+                    }
+
+                    toSkip -= skipped;
+                }
+            }
+        }
+
+        chunkStart += consumed;
+        bufPos = 0;
+        bufLimit = 0;
+        bitCount -= wholeBytes << 3;
+        bitBuf &= (1L << bitCount) - 1L;
     }
 
     @Override
     public void close() throws IOException {
-        is.close();
+        if (is != null) {
+            is.close();
+        }
     }
 
 }
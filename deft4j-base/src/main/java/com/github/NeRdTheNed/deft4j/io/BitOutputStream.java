@@ -1,84 +1,148 @@
 package com.github.NeRdTheNed.deft4j.io;
 
 import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
 
-public class BitOutputStream implements Closeable {
+/**
+ * Writes LSB-first bit sequences to an OutputStream.
+ * Bits are collected in a 64-bit accumulator, and whole bytes are moved to an internal buffer,
+ * which is written to the OutputStream when full or when flushed.
+ */
+public class BitOutputStream implements Closeable, Flushable {
     private static final int ALIGN = 8;
 
+    /** Maximum amount of bits which can be written with a single call to {@link #writeBits(long, int)} */
+    public static final int MAX_BITS = 57;
+
+    private static final int BUFFER_SIZE = 8192;
+
     private final OutputStream os;
 
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int bufPos;
+
     private long pos;
 
-    private int accum;
-    private int bitpos = ALIGN;
+    private long accum;
+    private int bitCount;
 
     public BitOutputStream(OutputStream os) {
         this.os = os;
     }
 
-    private void writeByteAssumeAligned(int b) throws IOException {
-        os.write(b);
-        pos++;
-    }
-
-    private void writeBytesAssumeAligned(byte[] bytes) throws IOException {
-        os.write(bytes);
-        pos += bytes.length;
+    private void flushBuffer() throws IOException {
+        if (bufPos > 0) {
+            os.write(buf, 0, bufPos);
+            bufPos = 0;
+        }
     }
 
-    private void writeBit(int bit) throws IOException {
-        accum |= (bit & 1) << (ALIGN - 1 - --bitpos);
+    /** Moves all whole bytes from the accumulator to the buffer */
+    private void flushAccum() throws IOException {
+        if ((BUFFER_SIZE - bufPos) < 8) {
+            flushBuffer();
+        }
 
-        if (bitpos == 0) {
-            writeByteAssumeAligned(accum);
-            bitpos = ALIGN;
-            accum = 0;
+        while (bitCount >= ALIGN) {
+            buf[bufPos++] = (byte) accum;
+            accum >>>= ALIGN;
+            bitCount -= ALIGN;
+            pos++;
         }
     }
 
-    public void writeNBits(long bits, int n) throws IOException {
-        for (int i = 0; i < n; i++) {
-            writeBit((int) ((bits >>> i) & 1));
+    /** Writes the n lowest bits of the given value, n must be at most {@link #MAX_BITS} */
+    public void writeBits(long bits, int n) throws IOException {
+        assert (n >= 0) && (n <= MAX_BITS);
+
+        if ((bitCount + n) > 64) {
+            flushAccum();
         }
+
+        accum |= (bits & ((1L << n) - 1L)) << bitCount;
+        bitCount += n;
     }
 
-    private void writeByte(int b) throws IOException {
-        if (bitpos != ALIGN) {
-            writeNBits(b & 0xFF, 8);
+    public void writeNBits(long bits, int n) throws IOException {
+        if (n > MAX_BITS) {
+            writeBits(bits, MAX_BITS);
+            writeBits(bits >>> MAX_BITS, n - MAX_BITS);
         } else {
-            writeByteAssumeAligned(b);
+            writeBits(bits, n);
         }
     }
 
     public void writeBytes(byte[] bytes) throws IOException {
-        if (bitpos != ALIGN) {
-            for (final byte b : bytes) {
-                writeByte(b & 0xFF);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeBytes(byte[] bytes, int off, int len) throws IOException {
+        if ((bitCount & (ALIGN - 1)) != 0) {
+            // Unaligned, write as many bytes at a time as fit in the accumulator
+            final int end = off + len;
+            int i = off;
+
+            while ((end - i) >= 7) {
+                long word = 0;
+
+                for (int j = 6; j >= 0; j--) {
+                    word = (word << 8) | (bytes[i + j] & 0xFFL);
+                }
+
+                writeBits(word, 56);
+                i += 7;
+            }
+
+            while (i < end) {
+                writeBits(bytes[i] & 0xFF, 8);
+                i++;
             }
+
+            return;
+        }
+
+        flushAccum();
+
+        if (len >= (BUFFER_SIZE - bufPos)) {
+            flushBuffer();
+            os.write(bytes, off, len);
         } else {
-            writeBytesAssumeAligned(bytes);
+            System.arraycopy(bytes, off, buf, bufPos, len);
+            bufPos += len;
         }
+
+        pos += len;
     }
 
     public void flushToByteAligned() throws IOException {
-        if (bitpos != ALIGN) {
-            writeNBits(0, bitpos);
+        final int partial = bitCount & (ALIGN - 1);
+
+        if (partial != 0) {
+            writeBits(0, ALIGN - partial);
         }
     }
 
+    /** Writes all whole bytes to the OutputStream */
+    @Override
+    public void flush() throws IOException {
+        flushAccum();
+        flushBuffer();
+    }
+
     public long getBytesWritten() {
-        return pos;
+        return pos + (bitCount >>> 3);
     }
 
     public int getRemainingBits() {
-        return bitpos;
+        return ALIGN - (bitCount & (ALIGN - 1));
     }
 
     @Override
     public void close() throws IOException {
         flushToByteAligned();
+        flush();
         os.close();
     }
 
@@ -1,6 +1,5 @@
 package com.github.NeRdTheNed.deft4j.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import com.github.NeRdTheNed.deft4j.io.BitInputStream;
@@ -12,12 +11,12 @@ public final class BitInputStreamUtil {
     }
 
     public static byte[] readFromBIS(BitInputStream is, int length) throws IOException {
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final byte[] read = new byte[length];
 
-        for (int i = 0; i < length; i++) {
-            baos.write((byte) is.readBits(8));
+        if (is.readBytes(read, 0, length) != length) {
+            throw new IOException("Reached end of input before reading " + length + " bytes");
         }
 
-        return baos.toByteArray();
+        return read;
     }
 }
@@ -0,0 +1,293 @@
+package com.github.NeRdTheNed.deft4j.util;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An immutable list of primitive ints, stored in chunks which are shared between lists.
+ * Lists are edited by walking the original list with a {@link Builder},
+ * which reuses every chunk of the original list that wasn't changed.
+ */
+public final class ChunkedIntList {
+    /** Maximum size of newly created chunks */
+    private static final int CHUNK_SIZE = 1024;
+    private static final int INITIAL_CHUNK_CAPACITY = 16;
+
+    public static final ChunkedIntList EMPTY = new ChunkedIntList(new int[0][], new int[0], 0, 0);
+
+    private final int[][] chunks;
+    private final int[] chunkSizes;
+    private final int chunkCount;
+    private final int size;
+
+    private ChunkedIntList(int[][] chunks, int[] chunkSizes, int chunkCount, int size) {
+        this.chunks = chunks;
+        this.chunkSizes = chunkSizes;
+        this.chunkCount = chunkCount;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int index) {
+        assert (index >= 0) && (index < size);
+        int chunk = 0;
+
+        while (index >= chunkSizes[chunk]) {
+            index -= chunkSizes[chunk];
+            chunk++;
+        }
+
+        return chunks[chunk][index];
+    }
+
+    public int getLast() {
+        assert size > 0;
+        final int chunk = chunkCount - 1;
+        return chunks[chunk][chunkSizes[chunk] - 1];
+    }
+
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int chunk = -1;
+            private int[] current = new int[0];
+            private int currentSize;
+            private int pos;
+
+            /** Moves to the next non-empty chunk, returns false if there are no more chunks */
+            private boolean nextChunk() {
+                while ((chunk + 1) < chunkCount) {
+                    chunk++;
+
+                    if (chunkSizes[chunk] > 0) {
+                        current = chunks[chunk];
+                        currentSize = chunkSizes[chunk];
+                        pos = 0;
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return (pos < currentSize) || nextChunk();
+            }
+
+            @Override
+            public int nextInt() {
+                if ((pos >= currentSize) && !nextChunk()) {
+                    throw new NoSuchElementException();
+                }
+
+                return current[pos++];
+            }
+        };
+    }
+
+    public int[] toArray() {
+        final int[] array = new int[size];
+        int pos = 0;
+
+        for (int i = 0; i < chunkCount; i++) {
+            System.arraycopy(chunks[i], 0, array, pos, chunkSizes[i]);
+            pos += chunkSizes[i];
+        }
+
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    /**
+     * Builds a new list, either from scratch or by walking an existing list from start to end.
+     * Each value of the existing list must be either kept or skipped, and new values can be added at any point.
+     * Chunks of the existing list with no skipped or added values are shared with the new list.
+     */
+    public static final class Builder {
+        private final ChunkedIntList source;
+        private int srcChunk;
+        private int srcPos;
+        /** True if every value from the start of the current source chunk to srcPos has been kept, but not added to the new list yet */
+        private boolean sharing = true;
+
+        private int[][] chunks = new int[4][];
+        private int[] chunkSizes = new int[4];
+        private int chunkCount;
+        private int size;
+
+        private int[] open;
+        private int openSize;
+
+        public Builder() {
+            this(EMPTY);
+        }
+
+        public Builder(ChunkedIntList source) {
+            this.source = source;
+            skipEmptySourceChunks();
+        }
+
+        private void skipEmptySourceChunks() {
+            while ((srcChunk < source.chunkCount) && (srcPos >= source.chunkSizes[srcChunk])) {
+                srcChunk++;
+                srcPos = 0;
+                sharing = true;
+            }
+        }
+
+        private void appendChunk(int[] chunk, int chunkSize) {
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunkCount * 2);
+                chunkSizes = Arrays.copyOf(chunkSizes, chunkCount * 2);
+            }
+
+            chunks[chunkCount] = chunk;
+            chunkSizes[chunkCount] = chunkSize;
+            chunkCount++;
+            size += chunkSize;
+        }
+
+        private void closeOpen() {
+            if (openSize > 0) {
+                appendChunk(open, openSize);
+                open = null;
+                openSize = 0;
+            }
+        }
+
+        private void addOpen(int value) {
+            if (openSize == CHUNK_SIZE) {
+                closeOpen();
+            }
+
+            if (open == null) {
+                open = new int[INITIAL_CHUNK_CAPACITY];
+            } else if (openSize == open.length) {
+                open = Arrays.copyOf(open, Math.min(openSize * 2, CHUNK_SIZE));
+            }
+
+            open[openSize++] = value;
+        }
+
+        /** Stops sharing the current source chunk, by copying its kept values to the new list */
+        private void unshare() {
+            if (sharing) {
+                final int[] chunk = source.chunks[srcChunk];
+
+                for (int i = 0; i < srcPos; i++) {
+                    addOpen(chunk[i]);
+                }
+
+                sharing = false;
+            }
+        }
+
+        /** Moves to the next value of the source list, and shares the current source chunk if it was kept unchanged */
+        private void advance() {
+            srcPos++;
+
+            if (srcPos >= source.chunkSizes[srcChunk]) {
+                if (sharing) {
+                    closeOpen();
+                    appendChunk(source.chunks[srcChunk], source.chunkSizes[srcChunk]);
+                }
+
+                srcChunk++;
+                srcPos = 0;
+                sharing = true;
+                skipEmptySourceChunks();
+            }
+        }
+
+        /** Returns true if there are values in the source list which haven't been kept or skipped */
+        public boolean hasNext() {
+            return srcChunk < source.chunkCount;
+        }
+
+        /** Returns the next value in the source list, without keeping or skipping it */
+        public int peek() {
+            assert hasNext();
+            return source.chunks[srcChunk][srcPos];
+        }
+
+        /** Keeps the next value from the source list */
+        public void keep() {
+            assert hasNext();
+
+            if (!sharing) {
+                addOpen(source.chunks[srcChunk][srcPos]);
+            }
+
+            advance();
+        }
+
+        /** Keeps the next count values from the source list */
+        public void keep(int count) {
+            while (count > 0) {
+                if ((srcPos == 0) && (count >= source.chunkSizes[srcChunk])) {
+                    // Share the whole chunk
+                    final int chunkSize = source.chunkSizes[srcChunk];
+                    closeOpen();
+                    appendChunk(source.chunks[srcChunk], chunkSize);
+                    srcChunk++;
+                    sharing = true;
+                    skipEmptySourceChunks();
+                    count -= chunkSize;
+                } else {
+                    keep();
+                    count--;
+                }
+            }
+        }
+
+        /** Keeps all remaining values from the source list */
+        public void keepRest() {
+            while (hasNext()) {
+                keep(source.chunkSizes[srcChunk] - srcPos);
+            }
+        }
+
+        /** Skips the next value from the source list, removing it from the new list */
+        public void skip() {
+            assert hasNext();
+            unshare();
+            advance();
+        }
+
+        /** Adds a new value to the new list, before the next value of the source list */
+        public void add(int value) {
+            if (srcPos > 0) {
+                unshare();
+            }
+
+            addOpen(value);
+        }
+
+        /** Adds all values from the given list to the new list, sharing its chunks */
+        public void addAll(ChunkedIntList other) {
+            if (srcPos > 0) {
+                unshare();
+            }
+
+            closeOpen();
+
+            for (int i = 0; i < other.chunkCount; i++) {
+                appendChunk(other.chunks[i], other.chunkSizes[i]);
+            }
+        }
+
+        public ChunkedIntList build() {
+            assert !hasNext() : "Source list not fully walked";
+            closeOpen();
+            return new ChunkedIntList(chunks, chunkSizes, chunkCount, size);
+        }
+    }
+}
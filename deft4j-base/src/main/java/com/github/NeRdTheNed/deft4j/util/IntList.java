@@ -0,0 +1,86 @@
+package com.github.NeRdTheNed.deft4j.util;
+
+import java.util.Arrays;
+
+/** A growable list of primitive ints, to avoid boxing */
+public class IntList {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] values;
+    private int size;
+
+    public IntList(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    public IntList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+
+        values[size] = value;
+        size++;
+    }
+
+    public int get(int index) {
+        assert index < size;
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+
+        for (int i = 0; i < size; i++) {
+            result = (31 * result) + values[i];
+        }
+
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof IntList)) {
+            return false;
+        }
+
+        final IntList other = (IntList) obj;
+
+        if (size != other.size) {
+            return false;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (values[i] != other.values[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
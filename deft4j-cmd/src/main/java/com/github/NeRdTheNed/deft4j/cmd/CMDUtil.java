@@ -15,6 +15,8 @@ import com.github.NeRdTheNed.deft4j.container.ContainerUtil;
 import com.github.NeRdTheNed.deft4j.container.DeflateFilesContainer;
 import com.github.NeRdTheNed.deft4j.container.RawDeflateFile;
 import com.github.NeRdTheNed.deft4j.deflate.DeflateStream;
+import com.github.NeRdTheNed.deft4j.deflate.OptimiseOptions;
+import com.github.NeRdTheNed.deft4j.deflate.StrategyStats;
 import com.github.NeRdTheNed.deft4j.util.Util;
 import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil;
 import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
@@ -37,22 +39,56 @@ public class CMDUtil {
 
     /** Recompress each deflate stream, and optimise. If the result is smaller, use it. */
     private final boolean recompress;
-    private final boolean mergeBlocks;
+    private final OptimiseOptions options;
+    /** Statistics of which candidate blocks win, shared between every optimised file, or null if there's no profile */
+    private final StrategyStats stats;
+    /** File to persist the statistics to, or null */
+    private final Path profile;
 
     private final CompressionUtil compUtil;
 
-    CMDUtil(RecompressMode recompressMode, boolean mergeBlocks, int passes) {
+    CMDUtil(RecompressMode recompressMode, boolean mergeBlocks, OptimiseOptions.Effort effort, Path profile, int passes) throws IOException {
         recompress = recompressMode.ordinal() > RecompressMode.NONE.ordinal();
         final boolean zopfli = recompressMode.ordinal() >= RecompressMode.ZOPFLI.ordinal();
         final Strategy strat = recompressMode.ordinal() >= RecompressMode.ZOPFLI_EXTENSIVE.ordinal() ? Strategy.EXTENSIVE : Strategy.MULTI_CHEAP;
-        compUtil = recompress ? new CompressionUtil(true, true, recompressMode.ordinal() >= RecompressMode.ZOPFLI_VERY_EXTENSIVE.ordinal(), zopfli, passes, strat, true, true, mergeBlocks) : null;
-        this.mergeBlocks = mergeBlocks;
+        this.profile = profile;
+
+        if ((profile != null) && Files.isRegularFile(profile)) {
+            try
+                (final InputStream is = new BufferedInputStream(Files.newInputStream(profile))) {
+                stats = StrategyStats.read(is);
+            }
+        } else {
+            stats = profile != null ? new StrategyStats() : null;
+        }
+
+        options = OptimiseOptions.DEFAULT.withMergeBlocks(mergeBlocks).withEffort(effort).withStats(stats);
+        compUtil = recompress ? new CompressionUtil(true, true, recompressMode.ordinal() >= RecompressMode.ZOPFLI_VERY_EXTENSIVE.ordinal(), zopfli, passes, strat, true, true, options) : null;
     }
 
-    CMDUtil(RecompressMode recompressMode, boolean mergeBlocks) {
+    CMDUtil(RecompressMode recompressMode, boolean mergeBlocks, int passes) throws IOException {
+        this(recompressMode, mergeBlocks, OptimiseOptions.Effort.EXHAUSTIVE, null, passes);
+    }
+
+    CMDUtil(RecompressMode recompressMode, boolean mergeBlocks) throws IOException {
         this(recompressMode, mergeBlocks, 20);
     }
 
+    /** Write the statistics of winning candidate blocks to the profile, if there is one */
+    private void saveProfile() {
+        if (profile == null) {
+            return;
+        }
+
+        try
+            (final OutputStream os = new BufferedOutputStream(Files.newOutputStream(profile))) {
+            stats.write(os);
+        } catch (final IOException e) {
+            System.err.println("IOException thrown when writing profile " + profile);
+            e.printStackTrace();
+        }
+    }
+
     /** Read from the given input stream into the container, optimise, and write to the output stream */
     private boolean optimise(InputStream is, OutputStream os, DeflateFilesContainer container) throws IOException {
         if (container == null) {
@@ -67,7 +103,7 @@ public class CMDUtil {
                 System.out.println(container.getStreamInfo());
             }
 
-            final long saved = NO_OPT ? 0 : container.optimise(mergeBlocks);
+            final long saved = NO_OPT ? 0 : container.optimise(options);
 
             if (saved != 0) {
                 System.out.println("Saved " + saved + " bits with optimisation");
@@ -86,7 +122,7 @@ public class CMDUtil {
                     final ByteArrayInputStream bais = new ByteArrayInputStream(recompresed);
 
                     if (recompStream.parse(bais)) {
-                        recompStream.optimise(mergeBlocks);
+                        recompStream.optimise(options);
                         final long recompSize = recompStream.getSizeBits();
                         final long originalSize = stream.getSizeBits();
                         final long streamSaved = originalSize - recompSize;
@@ -164,6 +200,8 @@ public class CMDUtil {
             e.printStackTrace();
         }
 
+        saveProfile();
+
         if (overwrite) {
             if (returnVal) {
                 Files.copy(possibleTempPath, output, StandardCopyOption.REPLACE_EXISTING);
@@ -4,6 +4,7 @@ import java.nio.file.Path;
 import java.util.concurrent.Callable;
 
 import com.github.NeRdTheNed.deft4j.cmd.CMDUtil.RecompressMode;
+import com.github.NeRdTheNed.deft4j.deflate.OptimiseOptions.Effort;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -33,9 +34,15 @@ class Optimise implements Callable<Integer> {
     @Option(names = { "--merge-blocks", "-b" }, negatable = true, defaultValue = "true", fallbackValue = "true", description = "Try merging deflate blocks. May majorly increase time spent optimising files.")
     boolean mergeBlocks = true;
 
+    @Option(names = { "--effort", "-e" }, defaultValue = "EXHAUSTIVE", description = "How many candidate blocks to try. Lower levels are much faster, but save less. Default: ${DEFAULT-VALUE}. Valid values: ${COMPLETION-CANDIDATES}")
+    private Effort effort;
+
+    @Option(names = { "--profile", "-p" }, description = "File to read and save statistics of which optimisations work to. Makes optimisation faster over time at effort levels below EXHAUSTIVE.")
+    private Path profile;
+
     @Override
     public Integer call() throws Exception {
-        final CMDUtil deft = new CMDUtil(recompressMode, mergeBlocks, recompressZopfliPasses);
+        final CMDUtil deft = new CMDUtil(recompressMode, mergeBlocks, effort, profile, recompressZopfliPasses);
         final boolean didOpt;
 
         try {
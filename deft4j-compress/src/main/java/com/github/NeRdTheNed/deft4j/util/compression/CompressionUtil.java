@@ -12,6 +12,7 @@ import java.util.function.Supplier;
 import java.util.zip.Deflater;
 
 import com.github.NeRdTheNed.deft4j.Deft;
+import com.github.NeRdTheNed.deft4j.deflate.OptimiseOptions;
 import com.jcraft.jzlib.JZlib;
 
 /** Utility class for finding the best way to compress given data in the deflate format */
@@ -38,7 +39,8 @@ public class CompressionUtil {
 
     private final boolean useDeft;
     private final boolean compareDeft;
-    private final boolean mergeBlocks;
+    /** Options used when optimising compressed output with deft4j */
+    private final OptimiseOptions options;
 
     /** Construct the list of compressors for the given settings */
     private static Compressor[] getCompressors(boolean java, boolean jzlib, boolean jzopfli, boolean cafeundzopfli, int iter, Strategy mode, int defaultSplit) {
@@ -77,15 +79,23 @@ public class CompressionUtil {
         return compressorsList.toArray(new Compressor[0]);
     }
 
-    private CompressionUtil(Compressor[] compressors, boolean useDeft, boolean compareDeft, boolean mergeBlocks) {
+    private CompressionUtil(Compressor[] compressors, boolean useDeft, boolean compareDeft, OptimiseOptions options) {
         this.compressors = compressors;
         this.useDeft = useDeft;
         this.compareDeft = compareDeft;
-        this.mergeBlocks = mergeBlocks;
+        this.options = options;
+    }
+
+    public CompressionUtil(boolean java, boolean jzlib, boolean jzopfli, boolean cafeundzopfli, int iter, Strategy mode, int defaultSplit, boolean useDeft, boolean compareDeft, OptimiseOptions options) {
+        this(getCompressors(java, jzlib, jzopfli, cafeundzopfli, iter, mode, defaultSplit), useDeft, compareDeft, options);
+    }
+
+    public CompressionUtil(boolean java, boolean jzlib, boolean jzopfli, boolean cafeundzopfli, int iter, Strategy mode, boolean useDeft, boolean compareDeft, OptimiseOptions options) {
+        this(java, jzlib, jzopfli, cafeundzopfli, iter, mode, JZOPFLI_DEFAULT_SPLIT, useDeft, compareDeft, options);
     }
 
     public CompressionUtil(boolean java, boolean jzlib, boolean jzopfli, boolean cafeundzopfli, int iter, Strategy mode, int defaultSplit, boolean useDeft, boolean compareDeft, boolean mergeBlocks) {
-        this(getCompressors(java, jzlib, jzopfli, cafeundzopfli, iter, mode, defaultSplit), useDeft, compareDeft, mergeBlocks);
+        this(java, jzlib, jzopfli, cafeundzopfli, iter, mode, defaultSplit, useDeft, compareDeft, OptimiseOptions.DEFAULT.withMergeBlocks(mergeBlocks));
     }
 
     public CompressionUtil(boolean java, boolean jzlib, boolean jzopfli, boolean cafeundzopfli, int iter, Strategy mode, boolean useDeft, boolean compareDeft, boolean mergeBlocks) {
@@ -112,7 +122,7 @@ public class CompressionUtil {
             int tasks = 0;
 
             for (final Compressor compressor : compressors) {
-                compService.submit(new CompressorTask(compressor, uncompressedData, useDeft, mergeBlocks));
+                compService.submit(new CompressorTask(compressor, uncompressedData, useDeft, options));
                 tasks++;
             }
 
@@ -151,7 +161,7 @@ public class CompressionUtil {
 
                     for (byte[] currentResult : currentResultList) {
                         if (useDeft) {
-                            currentResult = Deft.optimiseDeflateStream(currentResult, mergeBlocks);
+                            currentResult = Deft.optimiseDeflateStream(currentResult, options);
                         }
 
                         if ((compressedData == null) || (compareDeft ? Deft.getSizeBitsFallback(currentResult) < currentSizeBits : currentResult.length < compressedData.length)) {
@@ -3,19 +3,20 @@ package com.github.NeRdTheNed.deft4j.util.compression;
 import java.util.concurrent.Callable;
 
 import com.github.NeRdTheNed.deft4j.Deft;
+import com.github.NeRdTheNed.deft4j.deflate.OptimiseOptions;
 
 class CompressorTask implements Callable<byte[][]> {
 
     private final Compressor compressor;
     private final byte[] uncompressedData;
     private final boolean optimiseDeft;
-    private final boolean mergeBlocks;
+    private final OptimiseOptions options;
 
-    CompressorTask(Compressor comp, byte[] uncompressedData, boolean optimiseDeft, boolean mergeBlocks) {
+    CompressorTask(Compressor comp, byte[] uncompressedData, boolean optimiseDeft, OptimiseOptions options) {
         compressor = comp;
         this.uncompressedData = uncompressedData;
         this.optimiseDeft = optimiseDeft;
-        this.mergeBlocks = mergeBlocks;
+        this.options = options;
     }
 
     @Override
@@ -30,7 +31,7 @@ class CompressorTask implements Callable<byte[][]> {
             final int length = compressed.length;
 
             for (int i = 0; i < length; i++) {
-                compressed[i] = Deft.optimiseDeflateStream(compressed[i], mergeBlocks);
+                compressed[i] = Deft.optimiseDeflateStream(compressed[i], options);
             }
         }
 
@@ -10,12 +10,19 @@ import java.util.List;
 
 import com.github.NeRdTheNed.deft4j.Deft;
 import com.github.NeRdTheNed.deft4j.deflate.DeflateStream;
+import com.github.NeRdTheNed.deft4j.deflate.OptimiseOptions;
 
 public interface DeflateFilesContainer extends Closeable {
     boolean RECALC = true;
 
     /** Optimise all given streams. Returns the total amount of bits saved. */
     static long optimise(List<DeflateStream> streams, boolean mergeBlocks) {
+        return optimise(streams, OptimiseOptions.DEFAULT.withMergeBlocks(mergeBlocks));
+    }
+
+    /** Optimise all given streams, with one time limit and candidate budget shared between all streams. Returns the total amount of bits saved. */
+    static long optimise(List<DeflateStream> streams, OptimiseOptions options) {
+        final OptimiseOptions.Budget budget = options.startBudget();
         long savedTotal = 0;
         final int size = streams.size();
 
@@ -26,17 +33,27 @@ public interface DeflateFilesContainer extends Closeable {
                 System.out.println("Stream " + defStream + " (" + stream.getName() + ")");
             }
 
-            final long saved = stream.optimise(mergeBlocks);
+            final long triedBefore = budget.getCandidatesTried();
+            final long prunedBefore = budget.getCandidatesPruned();
+            final long saved = stream.optimise(options, budget);
 
-            if (Deft.PRINT_OPT && (saved > 0)) {
-                System.out.println(saved + " bits saved in stream " + defStream + " (" + stream.getName() + ")");
+            if (Deft.PRINT_OPT) {
+                if (saved > 0) {
+                    System.out.println(saved + " bits saved in stream " + defStream + " (" + stream.getName() + ")");
+                }
+
+                System.out.println("Tried " + (budget.getCandidatesTried() - triedBefore) + " candidates, pruned " + (budget.getCandidatesPruned() - prunedBefore) + " candidates in stream " + defStream + " (" + stream.getName() + ")");
             }
 
             savedTotal += saved;
         }
 
-        if (Deft.PRINT_OPT && (savedTotal > 0)) {
-            System.out.println("Total bits saved " + savedTotal);
+        if (Deft.PRINT_OPT) {
+            if (savedTotal > 0) {
+                System.out.println("Total bits saved " + savedTotal);
+            }
+
+            System.out.println("Total candidates tried " + budget.getCandidatesTried() + ", pruned " + budget.getCandidatesPruned());
         }
 
         return savedTotal;
@@ -72,6 +89,11 @@ public interface DeflateFilesContainer extends Closeable {
         return optimise(getDeflateStreams(), mergeBlocks);
     }
 
+    /** Optimise all streams in this container. Returns the total amount of bits saved. */
+    default long optimise(OptimiseOptions options) {
+        return optimise(getDeflateStreams(), options);
+    }
+
     /** Returns debug information for the given stream */
     static String getStreamInfo(DeflateStream stream) {
         return stream.printBlockInfo();
@@ -1,5 +1,6 @@
 package com.github.NeRdTheNed.deft4j.container;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -40,6 +41,23 @@ public class GZFile implements DeflateFilesContainer {
 
     @Override
     public boolean read(InputStream is) throws IOException {
+        return read(is, 0L);
+    }
+
+    /** The uncompressed size is only known before parsing when the whole file is available, as it's stored after the deflate stream */
+    @Override
+    public boolean read(byte[] bytes) throws IOException {
+        long sizeHint = 0L;
+
+        if (bytes.length >= 4) {
+            final int end = bytes.length;
+            sizeHint = (bytes[end - 4] & 0xff) + ((bytes[end - 3] & 0xff) << 8) + ((bytes[end - 2] & 0xff) << 16) + ((long)(bytes[end - 1] & 0xff) << 24);
+        }
+
+        return read(new ByteArrayInputStream(bytes), sizeHint);
+    }
+
+    private boolean read(InputStream is, long sizeHint) throws IOException {
         // Check if data is likely GZip
         if ((is == null)
                 // Check GZip signature
@@ -77,7 +95,7 @@ public class GZFile implements DeflateFilesContainer {
 
         deflateStream = new DeflateStream(filename);
 
-        if (!deflateStream.parse(is)) {
+        if (!deflateStream.parse(is, sizeHint)) {
             return false;
         }
 
@@ -22,6 +22,10 @@ public class PNGFile implements DeflateFilesContainer, ToGZipConvertible {
         byte[] data;
         private long seqNum;
 
+        boolean isIHDR() {
+            return (type[0] == 'I') && (type[1] == 'H') && (type[2] == 'D') && (type[3] == 'R');
+        }
+
         boolean isIDAT() {
             return (type[0] == 'I') && (type[1] == 'D') && (type[2] == 'A') && (type[3] == 'T');
         }
@@ -410,6 +414,12 @@ public class PNGFile implements DeflateFilesContainer, ToGZipConvertible {
         return true;
     }
 
+    // Adam7 interlacing passes
+    private static final int[] ADAM7_X_START = { 0, 4, 0, 2, 0, 1, 0 };
+    private static final int[] ADAM7_Y_START = { 0, 0, 4, 0, 2, 0, 1 };
+    private static final int[] ADAM7_X_STEP = { 8, 8, 4, 4, 2, 2, 1 };
+    private static final int[] ADAM7_Y_STEP = { 8, 8, 8, 4, 4, 2, 2 };
+
     private static final class PNGChunkHelper {
         public ZLibFile helperIdat;
         public List<ZLibFile> helperFdats = null;
@@ -426,6 +436,74 @@ public class PNGFile implements DeflateFilesContainer, ToGZipConvertible {
 
         private int seq = 0;
 
+        // Image info from IHDR, used to calculate the uncompressed size of image data
+        private int bitsPerPixel = 0;
+        private boolean interlaced = false;
+        /** Expected uncompressed size of the image data currently being read, or 0 if it isn't known */
+        private long imageDataSize = 0L;
+
+        private static long readIntBE(byte[] data, int offset) {
+            return ((long)(data[offset] & 0xff) << 24) + ((data[offset + 1] & 0xff) << 16) + ((data[offset + 2] & 0xff) << 8) + (data[offset + 3] & 0xff);
+        }
+
+        private static int channels(int colorType) {
+            switch (colorType) {
+            case 0:
+            case 3:
+                return 1;
+
+            case 2:
+                return 3;
+
+            case 4:
+                return 2;
+
+            case 6:
+                return 4;
+
+            default:
+                return 0;
+            }
+        }
+
+        /** Returns the size of the filtered image data for an image or frame, including the filter type byte before each scanline */
+        private long filteredSize(long width, long height) {
+            if (bitsPerPixel == 0) {
+                return 0L;
+            }
+
+            if (!interlaced) {
+                return height * (1 + (((width * bitsPerPixel) + 7) / 8));
+            }
+
+            long size = 0L;
+
+            // Each Adam7 pass is filtered as a separate image
+            for (int pass = 0; pass < ADAM7_X_START.length; pass++) {
+                final long passWidth = ((width - ADAM7_X_START[pass]) + (ADAM7_X_STEP[pass] - 1)) / ADAM7_X_STEP[pass];
+                final long passHeight = ((height - ADAM7_Y_START[pass]) + (ADAM7_Y_STEP[pass] - 1)) / ADAM7_Y_STEP[pass];
+
+                if ((passWidth > 0) && (passHeight > 0)) {
+                    size += passHeight * (1 + (((passWidth * bitsPerPixel) + 7) / 8));
+                }
+            }
+
+            return size;
+        }
+
+        private void readImageInfo(PNGChunk chunk) {
+            if (chunk.isIHDR() && (chunk.data.length >= 13)) {
+                bitsPerPixel = (chunk.data[8] & 0xff) * channels(chunk.data[9] & 0xff);
+                interlaced = chunk.data[12] == 1;
+                imageDataSize = filteredSize(readIntBE(chunk.data, 0), readIntBE(chunk.data, 4));
+            } else if (chunk.isfcTL() && (chunk.data.length >= 12)) {
+                // The first frame can be the default image, so it's always the IHDR size
+                if (seenIDAT) {
+                    imageDataSize = filteredSize(readIntBE(chunk.data, 4), readIntBE(chunk.data, 8));
+                }
+            }
+        }
+
         private boolean shouldFlush(PNGChunk chunk) {
             return (readingIDAT && !chunk.isIDAT()) || (readingfdAT && (chunk.isfcTL() || chunk.isIEND()));
         }
@@ -434,7 +512,7 @@ public class PNGFile implements DeflateFilesContainer, ToGZipConvertible {
             if (readingIDAT) {
                 helperIdat = new ZLibFile();
 
-                if (!helperIdat.read(baos.toByteArray())) {
+                if (!helperIdat.read(baos.toByteArray(), imageDataSize)) {
                     return false;
                 }
 
@@ -451,7 +529,7 @@ public class PNGFile implements DeflateFilesContainer, ToGZipConvertible {
                 final ZLibFile fdat = new ZLibFile();
                 helperFdats.add(fdat);
 
-                if (!fdat.read(baos.toByteArray())) {
+                if (!fdat.read(baos.toByteArray(), imageDataSize)) {
                     return false;
                 }
 
@@ -507,6 +585,8 @@ public class PNGFile implements DeflateFilesContainer, ToGZipConvertible {
                 return true;
             }
 
+            readImageInfo(chunk);
+
             if (chunk.isacTL()) {
                 // TODO Does the spec actually forbid multiple acTL chunks?
                 if (seenIDAT || seenacTL) {
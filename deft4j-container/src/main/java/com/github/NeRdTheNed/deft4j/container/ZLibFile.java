@@ -1,5 +1,6 @@
 package com.github.NeRdTheNed.deft4j.container;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -58,6 +59,15 @@ public class ZLibFile implements DeflateFilesContainer, ToGZipConvertible {
 
     @Override
     public boolean read(InputStream is) throws IOException {
+        return read(is, 0L);
+    }
+
+    /** Reads the ZLib stream, with the expected size of its uncompressed data as a hint for parsing the deflate stream */
+    boolean read(byte[] bytes, long sizeHint) throws IOException {
+        return read(new ByteArrayInputStream(bytes), sizeHint);
+    }
+
+    private boolean read(InputStream is, long sizeHint) throws IOException {
         CMF = is.read();
 
         // Check compression method, only deflate compression is supported
@@ -86,7 +96,7 @@ public class ZLibFile implements DeflateFilesContainer, ToGZipConvertible {
 
         deflateStream = new DeflateStream();
 
-        if (!deflateStream.parse(is)) {
+        if (!deflateStream.parse(is, sizeHint)) {
             return false;
         }
 
@@ -116,7 +116,7 @@ public class ZipFile implements DeflateFilesContainer, ToGZipConvertible {
 
             final DeflateStream deflateStream = new DeflateStream(name);
 
-            if (!deflateStream.parse(bis)) {
+            if (!deflateStream.parse(bis, localFile.getUncompressedSize())) {
                 System.err.println("Failed to parse stream for file " + name);
                 return false;
             }